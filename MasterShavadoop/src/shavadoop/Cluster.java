@@ -0,0 +1,197 @@
+package shavadoop;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the slave hosts of the cluster: which of them are reachable,
+ * and how much free space they reported. The membership is cached, so that a
+ * resident master does not ping all the slaves for every job; it is refreshed
+ * once older than the "shavadoop.membership.ttl" system property (in
+ * milliseconds, defaults to 5 minutes).
+ *
+ * @author zull
+ *
+ */
+class Cluster {
+	static final long MEMBERSHIP_TTL = Long.getLong("shavadoop.membership.ttl", 5 * 60 * 1000L); // cache
+	                                                                                              // lifetime
+
+	private final Map<String, Long> freeSpace = new HashMap<>(); // the free
+	                                                             // space
+	                                                             // reported by
+	                                                             // slave hosts
+	private long pingTime = 0; // the time of the last ping, in milliseconds
+	private List<String> reachableSlaves = new ArrayList<>(); // the list of
+	                                                          // reachable slave
+	                                                          // hosts
+	private final Path slaveHostsFile; // the file containing the list of
+	                                   // candidate slave machines
+	private final Path slaveHostsStatusFile; // the file to write the slave
+	                                         // machine status to
+
+	/**
+	 * Creates a new instance of Cluster.
+	 *
+	 * @param slaveHostsFile
+	 *            the pathname of the file containing the list of candidate
+	 *            slave machines.
+	 * @param slaveHostsStatusFile
+	 *            the pathname of the file to write the slave machine status to.
+	 */
+	Cluster(final String slaveHostsFile, final String slaveHostsStatusFile) {
+		this.slaveHostsFile = Paths.get(slaveHostsFile);
+		this.slaveHostsStatusFile = Paths.get(slaveHostsStatusFile);
+	}
+
+	/**
+	 * Returns whether the specified slave host has enough free space to be
+	 * assigned new tasks, according to the last free space it reported.
+	 *
+	 * @param slave
+	 *            the slave host.
+	 * @return true if the slave host can be assigned new tasks.
+	 */
+	synchronized boolean hasFreeSpace(final String slave) {
+		final Long free = freeSpace.get(slave);
+		return free == null || free < 0 || free >= ScratchSpace.MIN_FREE_SPACE;
+	}
+
+	/**
+	 * Returns the cached list of reachable slave hosts, without pinging the
+	 * candidate slave machines even if the cached membership has expired.
+	 *
+	 * @return the list of reachable slave hosts.
+	 */
+	synchronized List<String> getCachedReachableSlaves() {
+		return reachableSlaves;
+	}
+
+	/**
+	 * Returns the list of reachable slave hosts, pinging the candidate slave
+	 * machines if the cached membership has expired.
+	 *
+	 * @return the list of reachable slave hosts.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	List<String> getReachableSlaves() throws IOException {
+		synchronized (this) {
+			if (System.currentTimeMillis() - pingTime <= MEMBERSHIP_TTL) {
+				return reachableSlaves;
+			}
+		}
+		// Ping without holding the lock, so that the scheduler is not blocked.
+		System.err.println("Pinging slaves...");
+		final List<String> slaves = pingSlaves(loadHostsFile(slaveHostsFile));
+		synchronized (this) {
+			reachableSlaves = slaves;
+			pingTime = System.currentTimeMillis();
+			return reachableSlaves;
+		}
+	}
+
+	/**
+	 * Loads the list of candidate slave machines.
+	 *
+	 * @param file
+	 *            the file pathname.
+	 * @return the list of candidate slave machines.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private List<String> loadHostsFile(final Path file) throws IOException {
+		return Files.readAllLines(file, Charset.defaultCharset());
+	}
+
+	/**
+	 * Pings each of the slave machines from the provided list.
+	 *
+	 * @param hosts
+	 *            the list of candidate slave machines.
+	 * @return a mapping of slave machine host names to their respective status.
+	 */
+	private Map<String, Boolean> pingRemoteExec(final List<String> hosts) {
+		final List<SlaveThread> slaveThreads = new ArrayList<>();
+		// Start threads for every single slave computation.
+		for (final String host : hosts) {
+			final SlaveThread slaveThread = SlaveThread.createPingSlaveThread(host, ScratchSpace.ROOT);
+			slaveThreads.add(slaveThread);
+			slaveThread.start();
+		}
+		// Wait for all the slave threads to complete.
+		SlaveThread.waitFor(slaveThreads);
+		// Consolidate results from slave threads
+		final Map<String, Boolean> results = new HashMap<>();
+		for (final SlaveThread slaveThread : slaveThreads) {
+			System.err.println(slaveThread.getOutput());
+			final List<String> output = slaveThread.getOutput();
+			results.put(slaveThread.getHost(), output != null && output.size() > 0 && "OK".equals(output.get(0)));
+			updateFreeSpace(slaveThread.getHost(), slaveThread.getFreeSpace());
+		}
+		// Returns the consolidated results of the slave computations.
+		return results;
+	}
+
+	/**
+	 * Pings each of the slave machines from the provided list and save the
+	 * result into the status file.
+	 *
+	 * @param hosts
+	 *            the list of candidate slave machines.
+	 * @return the list of reachable slave hosts.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private List<String> pingSlaves(final List<String> hosts) throws IOException {
+		final Map<String, Boolean> results = pingRemoteExec(hosts);
+		saveReachabilityStatus(slaveHostsStatusFile, results);
+		final List<String> reachableHosts = new ArrayList<>();
+		for (final String host : results.keySet()) {
+			if (results.get(host)) {
+				reachableHosts.add(host);
+			}
+		}
+		return reachableHosts;
+	}
+
+	/**
+	 * Saves the provided slave reachability results into the specified file.
+	 *
+	 * @param file
+	 *            the file to save the results to.
+	 * @param results
+	 *            a mapping of slave hosts to reachability status.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void saveReachabilityStatus(final Path file, final Map<String, Boolean> results) throws IOException {
+		final List<CharSequence> lines = new ArrayList<>();
+		for (final Map.Entry<String, Boolean> entry : results.entrySet()) {
+			lines.add(entry.getKey() + ": " + entry.getValue());
+		}
+		Files.write(file, lines, Charset.defaultCharset(), new OpenOption[0]);
+	}
+
+	/**
+	 * Records the free space reported by a slave host.
+	 *
+	 * @param slave
+	 *            the slave host.
+	 * @param free
+	 *            the free space, in bytes, or -1 if not reported.
+	 */
+	synchronized void updateFreeSpace(final String slave, final long free) {
+		if (free >= 0) {
+			freeSpace.put(slave, free);
+		}
+	}
+}
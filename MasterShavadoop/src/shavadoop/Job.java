@@ -0,0 +1,723 @@
+package shavadoop;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Implements a word count job. A job is prepared by its submitter, then hands
+ * out its map and shuffle/reduce tasks to the {@link Scheduler} one at a
+ * time, and is notified as they complete.
+ * <p>
+ * In approximate mode, the map tasks build a word sketch of their split
+ * instead, and a single task merges these sketches into the most frequent
+ * words and the number of distinct words, skipping the shuffle entirely.
+ * <p>
+ * Apart from {@link #prepare(List)} and {@link #waitFor()}, the methods of a
+ * job are only called from the scheduler thread.
+ *
+ * @author zull
+ *
+ */
+class Job {
+	static final int MAX_ATTEMPTS = 3; // the number of times a task is tried
+	                                   // before the job fails
+
+	private final Map<String, Integer> attempts = new HashMap<>(); // failures
+	                                                               // per task
+	private final List<SlaveThread> committing = new ArrayList<>(); // tasks
+	                                                                // to
+	                                                                // commit
+	private long distinctWords = -1; // the estimated number of distinct words
+	private boolean done = false; // whether the job has completed or failed
+	private IOException failure = null; // the cause of the job failure
+	private final String inputFile; // the input file to process
+	private JobJournal journal; // the write-ahead journal of the job
+	private final String journalFile; // the pathname of the journal file
+	private final Map<String, Set<String>> keys_UMx = new HashMap<>(); // the
+	                                                                   // shuffle
+	                                                                   // plan
+	private final Map<String, String> Kx_machines = new HashMap<>(); // the
+	                                                                 // Kx
+	                                                                 // hosts
+	private boolean mergePending = false; // whether the sketch merge is ready
+	private final String name; // the name of the job, unique to its input and
+	                           // journal files
+	private int nextReduceIndex; // the index of the next RMx file
+	private ResultStore results; // the word counts
+	private final Deque<String> pendingMaps = new ArrayDeque<>(); // splits
+	                                                              // to map
+	private final Deque<String> pendingReduces = new ArrayDeque<>(); // keys
+	                                                                 // to
+	                                                                 // reduce
+	private boolean reducing = false; // whether the map stage has completed
+	private final Map<String, String> RMx_machines = new HashMap<>(); // the
+	                                                                  // RMx
+	                                                                  // hosts
+	private int runningTasks = 0; // the number of tasks currently running
+	private ScratchSpace scratch; // the scratch space of the job
+	private final SketchSpec sketchSpec; // the error bounds of the approximate
+	                                     // mode, or null in exact mode
+	private Map<String, Integer> UMx_consumers; // the number of pending
+	                                            // consumers of each UMx file
+	private final Map<String, String> UMx_machines = new HashMap<>(); // the
+	                                                                  // UMx
+	                                                                  // hosts
+	private final int weight; // the share of the slave slots the job gets
+
+	/**
+	 * Creates a new instance of Job.
+	 *
+	 * @param inputFile
+	 *            the input file to process.
+	 * @param journalFile
+	 *            the pathname of the job journal file. If the journal of a
+	 *            previous run exists, only the unfinished tasks are
+	 *            rescheduled.
+	 * @param weight
+	 *            the weight of the job: jobs get a share of the slave slots
+	 *            proportional to their weight.
+	 * @param sketchSpec
+	 *            the error bounds of the approximate mode, or null to count
+	 *            words exactly.
+	 */
+	Job(final String inputFile, final String journalFile, final int weight, final SketchSpec sketchSpec) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Invalid job weight: " + weight);
+		}
+		this.inputFile = inputFile;
+		this.journalFile = journalFile;
+		this.name = ScratchSpace.jobName(inputFile, journalFile);
+		this.weight = weight;
+		this.sketchSpec = sketchSpec;
+	}
+
+	/**
+	 * Adds the keys found in an UMx file to the mapping of keys to UMx files.
+	 * In approximate mode, records the Kx file instead.
+	 *
+	 * @param UMxFile
+	 *            the UMx (or Kx) file.
+	 * @param host
+	 *            the slave host that produced the file.
+	 * @param keys
+	 *            the keys found in the file.
+	 */
+	private void addMapFile(final String UMxFile, final String host, final Iterable<String> keys) {
+		if (sketchSpec != null) {
+			Kx_machines.put(UMxFile, host);
+			return;
+		}
+		for (final String word : keys) {
+			if (!keys_UMx.containsKey(word)) {
+				keys_UMx.put(word, new HashSet<String>());
+			}
+			keys_UMx.get(word).add(UMxFile);
+		}
+		UMx_machines.put(UMxFile, host);
+	}
+
+	/**
+	 * Accounts for the output files reported by a slave against the scratch
+	 * quota of the job.
+	 *
+	 * @param outputFiles
+	 *            the output files.
+	 * @throws IOException
+	 *             if the quota of the job is exceeded.
+	 */
+	private void allocate(final List<OutputFile> outputFiles) throws IOException {
+		for (final OutputFile outputFile : outputFiles) {
+			scratch.allocate(outputFile.getSize());
+		}
+	}
+
+	/**
+	 * Commits the tasks completed since the last commit: forces their journal
+	 * records to disk, then releases the intermediate files they consumed.
+	 * Called once per batch of completed tasks, and moves the job to its next
+	 * stage when the current one has completed.
+	 *
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void commit() throws IOException {
+		journal.sync();
+		for (final SlaveThread slaveThread : committing) {
+			if (isMapTask(slaveThread)) {
+				// The split file is no longer needed.
+				scratch.release(slaveThread.getParams().get(0));
+			} else if ("SHUFFLE_REDUCE".equals(slaveThread.getCommand())) {
+				// Release the UMx files whose consumers have all committed, and
+				// the SMx file of the task.
+				releaseMapFiles(keys_UMx.get(slaveThread.getParams().get(0)));
+				final List<OutputFile> outputFiles = slaveThread.getOutputFiles();
+				for (final OutputFile outputFile : outputFiles.subList(1, outputFiles.size())) {
+					scratch.release(outputFile.getPath());
+				}
+			}
+		}
+		committing.clear();
+		if (!reducing && pendingMaps.isEmpty() && runningTasks == 0) {
+			startReducing();
+		}
+		if (reducing && !hasPendingTask() && runningTasks == 0) {
+			complete();
+		}
+	}
+
+	/**
+	 * Completes the job, once all its tasks have committed.
+	 *
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void complete() throws IOException {
+		journal.delete();
+		scratch.delete();
+		synchronized (this) {
+			done = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Fails the job. Its journal is kept, so that it can be resumed later, but
+	 * its partial results are discarded.
+	 *
+	 * @param cause
+	 *            the cause of the failure.
+	 */
+	void fail(final IOException cause) {
+		try {
+			if (journal != null) {
+				journal.close();
+			}
+			if (results != null) {
+				results.close();
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		synchronized (this) {
+			failure = cause;
+			done = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the journaled UMx files whose consumers (the "REDUCE" tasks of
+	 * all the keys they contain) have all been journaled as well. These files
+	 * have been released, and need not be verified.
+	 *
+	 * @return the pathnames of the consumed UMx files.
+	 */
+	private Set<String> getConsumedMapFiles() {
+		final Set<String> consumedFiles = new HashSet<>();
+		if (sketchSpec != null) {
+			// Kx files are only released when the job completes.
+			return consumedFiles;
+		}
+		for (final JobJournal.Entry entry : journal.getMapEntries().values()) {
+			if (entry.getOutputFile() != null
+			        && journal.getReduceEntries().keySet().containsAll(entry.getValues())) {
+				consumedFiles.add(entry.getOutputFile().getPath());
+			}
+		}
+		return consumedFiles;
+	}
+
+	/**
+	 * Returns the estimated number of distinct words, once the job has
+	 * completed in approximate mode.
+	 *
+	 * @return the estimate, or -1 in exact mode.
+	 */
+	long getDistinctWords() {
+		return distinctWords;
+	}
+
+	/**
+	 * Returns the input file of the job.
+	 *
+	 * @return the input file.
+	 */
+	String getInputFile() {
+		return inputFile;
+	}
+
+	/**
+	 * Returns the journal file of the job.
+	 *
+	 * @return the journal file.
+	 */
+	String getJournalFile() {
+		return journalFile;
+	}
+
+	/**
+	 * Returns the name of the job, which identifies its scratch directory.
+	 *
+	 * @return the name.
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of tasks of the job currently running.
+	 *
+	 * @return the number of running tasks.
+	 */
+	int getRunningTasks() {
+		return runningTasks;
+	}
+
+	/**
+	 * Returns the weight of the job.
+	 *
+	 * @return the weight.
+	 */
+	int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Returns whether the job has a task ready to be scheduled.
+	 *
+	 * @return true if a task is ready.
+	 */
+	boolean hasPendingTask() {
+		if (done) {
+			return false;
+		} else if (!reducing) {
+			return !pendingMaps.isEmpty();
+		}
+		return sketchSpec != null ? mergePending : !pendingReduces.isEmpty();
+	}
+
+	/**
+	 * Returns whether the specified task belongs to the map stage.
+	 *
+	 * @param slaveThread
+	 *            the SlaveThread of the task.
+	 * @return true for "MAP" and "SKETCH" tasks.
+	 */
+	private boolean isMapTask(final SlaveThread slaveThread) {
+		return "MAP".equals(slaveThread.getCommand()) || "SKETCH".equals(slaveThread.getCommand());
+	}
+
+	/**
+	 * Returns whether the job has completed or failed.
+	 *
+	 * @return true if the job is done.
+	 */
+	synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Creates the SlaveThread of the next task of the job, to be run on the
+	 * designated slave host.
+	 *
+	 * @param slave
+	 *            the slave host.
+	 * @return the SlaveThread instance.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	SlaveThread nextTask(final String slave) throws IOException {
+		final SlaveThread slaveThread;
+		if (!reducing && sketchSpec != null) {
+			slaveThread = SlaveThread.createSketchSlaveThread(slave, pendingMaps.poll(), sketchSpec);
+		} else if (!reducing) {
+			slaveThread = SlaveThread.createMapSlaveThread(slave, pendingMaps.poll());
+		} else if (sketchSpec != null) {
+			mergePending = false;
+			final Path manifestFile = writeManifest("KM", new ArrayList<>(Kx_machines.keySet()));
+			slaveThread = SlaveThread.createSketchMergeSlaveThread(slave, sketchSpec.getTopN(),
+			        manifestFile.toString());
+		} else {
+			final String word = pendingReduces.poll();
+			// A common word is found in most UMx files: list them in a
+			// manifest file rather than on the command line.
+			final Path manifestFile = writeManifest("UL" + nextReduceIndex, new ArrayList<>(keys_UMx.get(word)));
+			final String RMi = scratch.file("RM" + nextReduceIndex++).toString();
+			slaveThread = SlaveThread.createReduceShuffleSlaveThread(slave, word, RMi, manifestFile.toString());
+		}
+		runningTasks++;
+		return slaveThread;
+	}
+
+	/**
+	 * Prepares the job: opens its journal and scratch space, verifies the
+	 * outputs of the journaled tasks and splits the input file. Called from
+	 * the submitter thread, before the job is submitted to the scheduler.
+	 *
+	 * @param reachableSlaves
+	 *            the list of reachable slave hosts.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void prepare(final List<String> reachableSlaves) throws IOException {
+		try {
+			System.err.println("Opening job journal...");
+			journal = JobJournal.open(Paths.get(journalFile), Paths.get(inputFile),
+			        sketchSpec != null ? sketchSpec.toString() : "EXACT");
+			scratch = new ScratchSpace(name);
+			// Spill the results next to the scratch directory, which is
+			// deleted before they are read.
+			results = new ResultStore(Paths.get(ScratchSpace.ROOT, name + ".results"), ResultStore.MEMORY_BUDGET);
+			System.err.println("Verifying journaled outputs...");
+			final Set<String> releasedMapFiles = getConsumedMapFiles();
+			verifyJournaledOutputs(journal.getReduceEntries(), reachableSlaves, Collections.<String>emptySet());
+			// The UMx files released by the previous run are only consumed if
+			// the outputs of all their consumers are still valid: otherwise the
+			// map tasks that produced them have to be recomputed as well.
+			final Set<String> consumedMapFiles = getConsumedMapFiles();
+			final Iterator<JobJournal.Entry> entries_iter = journal.getMapEntries().values().iterator();
+			while (entries_iter.hasNext()) {
+				final JobJournal.Entry entry = entries_iter.next();
+				if (entry.getOutputFile() != null && releasedMapFiles.contains(entry.getOutputFile().getPath())
+				        && !consumedMapFiles.contains(entry.getOutputFile().getPath())) {
+					System.err.println("Released output " + entry.getOutputFile().getPath()
+					        + " is needed again, and will be recomputed");
+					entries_iter.remove();
+				}
+			}
+			verifyJournaledOutputs(journal.getMapEntries(), reachableSlaves, consumedMapFiles);
+			// Account for the outputs kept from the previous run only, not for
+			// the leftover files that are about to be rewritten.
+			for (final JobJournal.Entry entry : journal.getReduceEntries().values()) {
+				scratch.allocate(entry.getOutputFile().getSize());
+			}
+			for (final JobJournal.Entry entry : journal.getMapEntries().values()) {
+				if (entry.getOutputFile() != null && !consumedMapFiles.contains(entry.getOutputFile().getPath())) {
+					scratch.allocate(entry.getOutputFile().getSize());
+				}
+			}
+			System.err.println("Splitting input file...");
+			final List<String> Sx = splitInputFile(inputFile);
+			System.err.println("Split input file into " + Sx.size() + " files");
+			// Recover the journaled tasks, and only schedule the remaining ones.
+			for (final String Si : Sx) {
+				final JobJournal.Entry entry = journal.getMapEntries().get(Si);
+				if (entry == null) {
+					pendingMaps.add(Si);
+				} else if (entry.getOutputFile() != null) {
+					addMapFile(entry.getOutputFile().getPath(), entry.getHost(), entry.getValues());
+				}
+			}
+			System.err.println("Recovered " + (Sx.size() - pendingMaps.size()) + " map tasks from journal");
+		} catch (final IOException e) {
+			fail(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the content of the specified input file.
+	 *
+	 * @param inputFile
+	 *            the input file.
+	 * @return the lines from the input file as a List.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private List<String> readInputFile(final Path inputFile) throws IOException {
+		final List<String> lines = Files.readAllLines(inputFile, Charset.defaultCharset());
+		return lines;
+	}
+
+	/**
+	 * Notifies that a consumer of the specified UMx files has committed, and
+	 * releases those that have no more pending consumers.
+	 *
+	 * @param UMx
+	 *            the UMx files read by the committed consumer.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void releaseMapFiles(final Set<String> UMx) throws IOException {
+		for (final String UMxFile : UMx) {
+			final int consumers = UMx_consumers.get(UMxFile) - 1;
+			UMx_consumers.put(UMxFile, consumers);
+			if (consumers == 0) {
+				scratch.release(UMxFile);
+			}
+		}
+	}
+
+	/**
+	 * Splits the specified input file. Current implementation only splits on
+	 * each line.
+	 *
+	 * @param inputFile
+	 *            the input file to split.
+	 * @return the path names of the files containing the splits.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private List<String> splitInputFile(final String inputFile) throws IOException {
+		final List<String> splitInputFiles = new ArrayList<>();
+		final List<String> lines = readInputFile(Paths.get(inputFile));
+		int count = 0;
+		for (final String line : lines) {
+			if (line.trim().length() > 0) {
+				final Path splitFile = scratch.file("S" + count++);
+				// Do not rewrite the split files of the journaled tasks.
+				if (!journal.getMapEntries().containsKey(splitFile.toString())) {
+					final byte[] bytes = line.getBytes();
+					scratch.allocate(bytes.length);
+					Files.write(splitFile, bytes, new OpenOption[0]);
+				}
+				splitInputFiles.add(splitFile.toString());
+			}
+		}
+		return splitInputFiles;
+	}
+
+	/**
+	 * Starts the shuffle/reduce stage (or the sketch merge in approximate
+	 * mode), once all the map tasks have committed.
+	 *
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void startReducing() throws IOException {
+		reducing = true;
+		if (sketchSpec != null) {
+			System.err.println("Merging word sketches of " + inputFile + "...");
+			mergePending = true;
+			return;
+		}
+		System.err.println("Shuffle/reduce unsorted map files of " + inputFile + "...");
+		// Count the consumers of each UMx file, to release them as soon as
+		// they all have committed.
+		UMx_consumers = new HashMap<>();
+		for (final Set<String> UMx : keys_UMx.values()) {
+			for (final String UMxFile : UMx) {
+				UMx_consumers.put(UMxFile, UMx_consumers.containsKey(UMxFile) ? UMx_consumers.get(UMxFile) + 1 : 1);
+			}
+		}
+		// Recover the journaled tasks, and only schedule the remaining ones.
+		final Set<String> remainingKeys = new HashSet<>(keys_UMx.keySet());
+		for (final JobJournal.Entry entry : journal.getReduceEntries().values()) {
+			if (remainingKeys.remove(entry.getTask())) {
+				releaseMapFiles(keys_UMx.get(entry.getTask()));
+				results.add(entry.getValues().get(0));
+				RMx_machines.put(entry.getOutputFile().getPath(), entry.getHost());
+			}
+		}
+		System.err.println("Recovered " + (keys_UMx.size() - remainingKeys.size()) + " reduce tasks from journal");
+		for (final String word : remainingKeys) {
+			if (word.length() > 0) {
+				pendingReduces.add(word);
+			}
+		}
+		nextReduceIndex = journal.getNextReduceIndex();
+	}
+
+	/**
+	 * Notifies the job that one of its tasks has completed. The task results
+	 * are journaled, but only committed by the next call to {@link #commit()}.
+	 * A failed task is rescheduled, up to {@link #MAX_ATTEMPTS} times.
+	 *
+	 * @param slaveThread
+	 *            the SlaveThread of the completed task.
+	 * @throws IOException
+	 *             if any I/O error occurred, or if the task failed too many
+	 *             times.
+	 */
+	void taskCompleted(final SlaveThread slaveThread) throws IOException {
+		runningTasks--;
+		final String slave = slaveThread.getHost();
+		final String task = slaveThread.getParams().get(0);
+		final boolean map = isMapTask(slaveThread);
+		final boolean merge = "SKETCH_MERGE".equals(slaveThread.getCommand());
+		final List<String> output = slaveThread.getOutput();
+		if ("SHUFFLE_REDUCE".equals(slaveThread.getCommand())) {
+			// The UMx manifest is written again if the task is rescheduled.
+			Files.deleteIfExists(Paths.get(slaveThread.getParams().get(2)));
+		}
+		if (output == null) {
+			final int failures = attempts.containsKey(task) ? attempts.get(task) + 1 : 1;
+			if (failures >= MAX_ATTEMPTS) {
+				throw new IOException("Task " + slaveThread.getCommand() + " " + task + " failed " + failures + " times");
+			}
+			attempts.put(task, failures);
+			if (merge) {
+				mergePending = true;
+			} else {
+				(map ? pendingMaps : pendingReduces).add(task);
+			}
+			return;
+		}
+		allocate(slaveThread.getOutputFiles());
+		if (merge) {
+			// The merge is not journaled: it is cheap to redo from the Kx files.
+			for (final String line : output) {
+				if (line.startsWith("DISTINCT ")) {
+					distinctWords = Long.parseLong(line.substring("DISTINCT ".length()));
+				} else {
+					results.add(line);
+				}
+			}
+		} else if (map) {
+			// Sketch tasks do not report keys, only their Kx file.
+			final Set<String> keys = new LinkedHashSet<>();
+			for (final String pair : output) {
+				keys.add(pair.split(":")[0]);
+			}
+			final OutputFile UMx = slaveThread.getOutputFile();
+			journal.logMap(task, slave, UMx, keys);
+			if (UMx != null) {
+				addMapFile(UMx.getPath(), slave, keys);
+			}
+		} else {
+			final OutputFile RMx = slaveThread.getOutputFile();
+			journal.logReduce(task, slave, RMx, output.get(0));
+			results.add(output.get(0));
+			RMx_machines.put(RMx.getPath(), slave);
+		}
+		committing.add(slaveThread);
+	}
+
+	/**
+	 * Verifies that the outputs of the journaled tasks are still available on
+	 * the slave hosts that produced them, and forgets the tasks whose outputs
+	 * are not, so that they get rescheduled.
+	 *
+	 * @param entries
+	 *            the journaled tasks.
+	 * @param reachableSlaves
+	 *            the list of reachable slave hosts.
+	 * @param releasedFiles
+	 *            the output files that have already been consumed and
+	 *            released, and must not be verified.
+	 * @throws IOException
+	 *             if the verification failed on a reachable slave host: the
+	 *             job is not resumed rather than silently restarted from
+	 *             scratch.
+	 */
+	private void verifyJournaledOutputs(final Map<String, JobJournal.Entry> entries,
+	        final List<String> reachableSlaves, final Set<String> releasedFiles) throws IOException {
+		final Map<String, List<OutputFile>> host_outputFiles = new HashMap<>();
+		for (final JobJournal.Entry entry : entries.values()) {
+			if (entry.getOutputFile() != null && !releasedFiles.contains(entry.getOutputFile().getPath())) {
+				if (!host_outputFiles.containsKey(entry.getHost())) {
+					host_outputFiles.put(entry.getHost(), new ArrayList<OutputFile>());
+				}
+				host_outputFiles.get(entry.getHost()).add(entry.getOutputFile());
+			}
+		}
+		// Start one thread per slave host, verifying all its outputs at once,
+		// as listed in a manifest file.
+		final List<SlaveThread> slaveThreads = new ArrayList<>();
+		final List<Path> manifestFiles = new ArrayList<>();
+		try {
+			for (final Map.Entry<String, List<OutputFile>> entry : host_outputFiles.entrySet()) {
+				if (reachableSlaves.contains(entry.getKey())) {
+					final List<String> lines = new ArrayList<>();
+					for (final OutputFile outputFile : entry.getValue()) {
+						lines.add(outputFile.toString());
+					}
+					final Path manifestFile = writeManifest("V" + manifestFiles.size(), lines);
+					manifestFiles.add(manifestFile);
+					final SlaveThread slaveThread = SlaveThread.createVerifySlaveThread(entry.getKey(),
+					        manifestFile.toString());
+					slaveThreads.add(slaveThread);
+					slaveThread.start();
+				} else {
+					System.err.println("Slave host " + entry.getKey() + " is unreachable: " + entry.getValue().size()
+					        + " journaled outputs will be recomputed");
+				}
+			}
+			// Wait for all the slave threads to complete.
+			SlaveThread.waitFor(slaveThreads);
+		} finally {
+			for (final Path manifestFile : manifestFiles) {
+				Files.deleteIfExists(manifestFile);
+			}
+		}
+		// Consolidate results from slave threads
+		final Set<String> verifiedFiles = new HashSet<>(releasedFiles);
+		for (final SlaveThread slaveThread : slaveThreads) {
+			final List<String> output = slaveThread.getOutput();
+			if (output == null) {
+				throw new IOException("Could not verify the journaled outputs on " + slaveThread.getHost()
+				        + ": not resuming the job, its journal is kept");
+			}
+			for (final String line : output) {
+				if (line.startsWith("OK ")) {
+					verifiedFiles.add(line.substring("OK ".length()));
+				} else if (line.startsWith("INVALID ")) {
+					System.err.println("Journaled output " + line.substring("INVALID ".length()) + " on "
+					        + slaveThread.getHost() + " is no longer valid, and will be recomputed");
+				}
+			}
+		}
+		final Iterator<JobJournal.Entry> entries_iter = entries.values().iterator();
+		while (entries_iter.hasNext()) {
+			final JobJournal.Entry entry = entries_iter.next();
+			if (entry.getOutputFile() != null && !verifiedFiles.contains(entry.getOutputFile().getPath())) {
+				entries_iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the job to complete.
+	 *
+	 * @return the word counts, iterated by decreasing number of occurrences.
+	 *         The caller must close the store once done with them.
+	 * @throws IOException
+	 *             if the job failed.
+	 */
+	synchronized ResultStore waitFor() throws IOException {
+		while (!done) {
+			try {
+				wait();
+			} catch (final InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return results;
+	}
+
+	/**
+	 * Writes a manifest file to the scratch directory, listing the arguments of
+	 * a slave command that may not fit on its command line.
+	 *
+	 * @param name
+	 *            the name of the manifest file.
+	 * @param lines
+	 *            the lines of the manifest.
+	 * @return the pathname of the manifest file.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private Path writeManifest(final String name, final List<String> lines) throws IOException {
+		final Path manifestFile = scratch.file(name);
+		Files.write(manifestFile, lines, Charset.defaultCharset(), new OpenOption[0]);
+		return manifestFile;
+	}
+}
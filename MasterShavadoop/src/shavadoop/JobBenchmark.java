@@ -0,0 +1,111 @@
+package shavadoop;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the end-to-end latency and accuracy of the approximate counting
+ * mode against exact counting, by running both kinds of job on the same input
+ * file through the scheduler and the slave hosts, one after the other.
+ * <p>
+ * The approximate job is configured with the "shavadoop.approx.*" system
+ * properties (see {@link SketchSpec}). Each job uses its own journal file,
+ * next to the input file, which is deleted once the job completes.
+ *
+ * @author zull
+ *
+ */
+public class JobBenchmark {
+	/**
+	 * Main entry point.
+	 *
+	 * @param args
+	 *            the arguments, in order: the slave host file, the remote host
+	 *            status file and the input file.
+	 * @throws IOException
+	 *             if any I/O error occurred, or if a job failed.
+	 */
+	public static void main(final String[] args) throws IOException {
+		if (args.length < 3) {
+			throw new IllegalArgumentException("Usage: <remote-hosts-file> <remote-host-status-file> <input-file>");
+		}
+		final Cluster cluster = new Cluster(args[0], args[1]);
+		final List<String> reachableSlaves = cluster.getReachableSlaves();
+		if (reachableSlaves.isEmpty()) {
+			throw new IOException("No reachable slave hosts");
+		}
+		final Scheduler scheduler = new Scheduler(cluster);
+		scheduler.start();
+		try {
+			final SketchSpec sketchSpec = SketchSpec.fromProperties();
+			final Map<String, Long> exact = new LinkedHashMap<>();
+			final long exactMillis = runJob(new Job(args[2], args[2] + ".exact.journal", 1, null), reachableSlaves,
+			        scheduler, exact);
+			final Map<String, Long> approximate = new LinkedHashMap<>();
+			final Job approximateJob = new Job(args[2], args[2] + ".approx.journal", 1, sketchSpec);
+			final long approximateMillis = runJob(approximateJob, reachableSlaves, scheduler, approximate);
+
+			// Compare the top words and their counts.
+			final List<String> exactTop = new ArrayList<>(exact.keySet()).subList(0,
+			        Math.min(sketchSpec.getTopN(), exact.size()));
+			int hits = 0;
+			double relativeError = 0;
+			long maxError = 0;
+			for (final Map.Entry<String, Long> entry : approximate.entrySet()) {
+				final Long count = exact.get(entry.getKey());
+				if (exactTop.contains(entry.getKey())) {
+					hits++;
+				}
+				final long error = Math.abs(entry.getValue() - (count == null ? 0 : count));
+				relativeError += count == null ? 1 : error / (double) count;
+				maxError = Math.max(maxError, error);
+			}
+			final long distinct = approximateJob.getDistinctWords();
+
+			System.out.println("End-to-end job latency, including the slave processes of all the tasks:");
+			System.out.println(String.format("Exact:       %8d ms", exactMillis));
+			System.out.println(String.format("Approximate: %8d ms", approximateMillis));
+			System.out.println(String.format("Top-%d recall: %.1f%%", sketchSpec.getTopN(),
+			        100.0 * hits / Math.max(1, exactTop.size())));
+			System.out.println(String.format("Top-%d count error: %.2f%% mean relative, %d max",
+			        sketchSpec.getTopN(), 100 * relativeError / Math.max(1, approximate.size()), maxError));
+			System.out.println(String.format("Distinct words: %d estimated, %d exact (error %.2f%%)", distinct,
+			        exact.size(), 100.0 * Math.abs(distinct - exact.size()) / Math.max(1, exact.size())));
+		} finally {
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * Runs a job and collects its word counts.
+	 *
+	 * @param job
+	 *            the job.
+	 * @param reachableSlaves
+	 *            the list of reachable slave hosts.
+	 * @param scheduler
+	 *            the scheduler to run the job on.
+	 * @param wordCounts
+	 *            the map to collect the word counts into, in decreasing order
+	 *            of occurrences.
+	 * @return the latency of the job, in milliseconds.
+	 * @throws IOException
+	 *             if any I/O error occurred, or if the job failed.
+	 */
+	private static long runJob(final Job job, final List<String> reachableSlaves, final Scheduler scheduler,
+	        final Map<String, Long> wordCounts) throws IOException {
+		final long start = System.currentTimeMillis();
+		job.prepare(reachableSlaves);
+		scheduler.submit(job);
+		try (ResultStore results = job.waitFor(); ResultStore.Cursor cursor = results.cursor()) {
+			final long millis = System.currentTimeMillis() - start;
+			while (cursor.next()) {
+				wordCounts.put(cursor.getKey(), cursor.getCount());
+			}
+			return millis;
+		}
+	}
+}
@@ -0,0 +1,414 @@
+package shavadoop;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Implements the write-ahead journal of a job. Every completed task is
+ * appended to the journal with the location, size and checksum of its output,
+ * so that a restarted master can reschedule only the unfinished work.
+ * <p>
+ * Each record is a single line, prefixed with the CRC32 of its content so that
+ * a record torn by a crash is detected and ignored on replay. Records are
+ * buffered and only forced to disk by {@link #sync()}, which the master calls
+ * once per scheduling wave rather than once per task.
+ *
+ * @author zull
+ *
+ */
+class JobJournal implements Closeable {
+	/**
+	 * A task recorded in the journal.
+	 */
+	static class Entry {
+		private final String host; // the slave host that ran the task
+
+		private final OutputFile outputFile; // the output file of the task, or
+		                                     // null if none was produced
+
+		private final String task; // the task identifier: the split file for
+		                           // "MAP" tasks, the key for "REDUCE" tasks
+
+		private final List<String> values; // the task results: the keys found
+		                                   // by "MAP" tasks, the word count
+		                                   // computed by "REDUCE" tasks
+
+		/**
+		 * Creates a new instance of Entry.
+		 *
+		 * @param task
+		 *            the task identifier.
+		 * @param host
+		 *            the slave host that ran the task.
+		 * @param outputFile
+		 *            the output file of the task, or null.
+		 * @param values
+		 *            the task results.
+		 */
+		Entry(final String task, final String host, final OutputFile outputFile, final List<String> values) {
+			this.task = task;
+			this.host = host;
+			this.outputFile = outputFile;
+			this.values = values;
+		}
+
+		/**
+		 * Returns the slave host that ran the task.
+		 *
+		 * @return the slave host.
+		 */
+		String getHost() {
+			return host;
+		}
+
+		/**
+		 * Returns the output file of the task.
+		 *
+		 * @return the output file, or null if none was produced.
+		 */
+		OutputFile getOutputFile() {
+			return outputFile;
+		}
+
+		/**
+		 * Returns the task identifier.
+		 *
+		 * @return the task identifier.
+		 */
+		String getTask() {
+			return task;
+		}
+
+		/**
+		 * Returns the task results. They are only kept when replayed, not when
+		 * logged.
+		 *
+		 * @return the task results.
+		 */
+		List<String> getValues() {
+			return values;
+		}
+	}
+
+	private static final String NO_FILE = "-"; // placeholder for tasks without
+	                                           // output file
+
+	/**
+	 * Opens the journal of the job processing the specified input file,
+	 * replaying the records of a previous run if neither the input file nor
+	 * the counting mode changed since. The journal is reset otherwise.
+	 *
+	 * @param file
+	 *            the journal file.
+	 * @param inputFile
+	 *            the input file of the job.
+	 * @param mode
+	 *            the description of the counting mode of the job.
+	 * @return the JobJournal instance.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	static JobJournal open(final Path file, final Path inputFile, final String mode) throws IOException {
+		final String header = "JOB " + Files.size(inputFile) + " " + Files.getLastModifiedTime(inputFile).toMillis()
+		        + " " + mode;
+		final JobJournal journal = new JobJournal(file);
+		if (Files.exists(file)) {
+			final List<String> lines = Files.readAllLines(file, Charset.defaultCharset());
+			if (lines.size() > 0 && header.equals(journal.check(lines.get(0)))) {
+				for (final String line : lines.subList(1, lines.size())) {
+					journal.replay(journal.check(line));
+				}
+			}
+		}
+		// Rewrite the journal from the replayed records, which both compacts it
+		// and drops any record torn by a crash, then atomically replace it.
+		final Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+		journal.open(tmpFile, StandardOpenOption.TRUNCATE_EXISTING);
+		journal.append(header);
+		for (final Entry entry : journal.mapEntries.values()) {
+			journal.append(mapRecord(entry));
+		}
+		for (final Entry entry : journal.reduceEntries.values()) {
+			journal.append(reduceRecord(entry));
+		}
+		journal.close();
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		journal.open(file, StandardOpenOption.APPEND);
+		return journal;
+	}
+
+	/**
+	 * Formats the record of a "MAP" task.
+	 *
+	 * @param entry
+	 *            the task.
+	 * @return the record.
+	 */
+	private static String mapRecord(final Entry entry) {
+		final StringBuilder record = new StringBuilder("MAP ").append(entry.task).append(' ').append(entry.host);
+		record.append(' ').append(entry.outputFile != null ? entry.outputFile.toString() : NO_FILE + " 0 0");
+		for (final String key : entry.values) {
+			record.append(' ').append(key);
+		}
+		return record.toString();
+	}
+
+	/**
+	 * Formats the record of a "REDUCE" task.
+	 *
+	 * @param entry
+	 *            the task.
+	 * @return the record.
+	 */
+	private static String reduceRecord(final Entry entry) {
+		return "REDUCE " + entry.task + " " + entry.host + " " + entry.outputFile + " " + entry.values.get(0);
+	}
+
+	private FileChannel channel; // the channel to the journal file
+
+	private final Path file; // the journal file
+
+	private final Map<String, Entry> mapEntries = new HashMap<>(); // the "MAP"
+	                                                               // tasks
+
+	private int nextReduceIndex = 0; // the lowest RMx index not used by any
+	                                 // journaled task
+
+	private final Map<String, Entry> reduceEntries = new HashMap<>(); // the
+	                                                                  // "REDUCE"
+	                                                                  // tasks
+
+	private BufferedWriter writer; // the buffered writer to the journal file
+
+	/**
+	 * Creates a new instance of JobJournal.
+	 *
+	 * @param file
+	 *            the journal file.
+	 */
+	private JobJournal(final Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Appends a record to the journal buffer.
+	 *
+	 * @param record
+	 *            the record.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void append(final String record) throws IOException {
+		writer.write(Long.toHexString(crc(record)) + " " + record);
+		writer.newLine();
+	}
+
+	/**
+	 * Checks the integrity of a journal line.
+	 *
+	 * @param line
+	 *            the journal line.
+	 * @return the record contained in the line, or null if the line is
+	 *         corrupted.
+	 */
+	private String check(final String line) {
+		final int sep = line.indexOf(' ');
+		if (sep < 0) {
+			return null;
+		}
+		final String record = line.substring(sep + 1);
+		try {
+			return Long.parseLong(line.substring(0, sep), 16) == crc(record) ? record : null;
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Closes the journal, forcing any buffered record to disk.
+	 */
+	@Override
+	public void close() throws IOException {
+		sync();
+		channel.close();
+	}
+
+	/**
+	 * Computes the CRC32 checksum of a record.
+	 *
+	 * @param record
+	 *            the record.
+	 * @return the checksum.
+	 */
+	private long crc(final String record) {
+		final CRC32 crc = new CRC32();
+		crc.update(record.getBytes(Charset.defaultCharset()));
+		return crc.getValue();
+	}
+
+	/**
+	 * Closes and deletes the journal, once the job has completed.
+	 *
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void delete() throws IOException {
+		close();
+		Files.deleteIfExists(file);
+	}
+
+	/**
+	 * Opens the specified file for writing records.
+	 *
+	 * @param path
+	 *            the file to write to.
+	 * @param mode
+	 *            the open mode (truncate or append).
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void open(final Path path, final StandardOpenOption mode) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+		writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), Charset.defaultCharset()));
+	}
+
+	/**
+	 * Returns the "MAP" tasks recorded in the journal.
+	 *
+	 * @return the journaled "MAP" tasks, keyed by split file.
+	 */
+	Map<String, Entry> getMapEntries() {
+		return mapEntries;
+	}
+
+	/**
+	 * Returns the lowest RMx index not used by any journaled task, so that
+	 * rescheduled tasks do not overwrite journaled outputs.
+	 *
+	 * @return the next RMx index.
+	 */
+	int getNextReduceIndex() {
+		return nextReduceIndex;
+	}
+
+	/**
+	 * Returns the "REDUCE" tasks recorded in the journal.
+	 *
+	 * @return the journaled "REDUCE" tasks, keyed by key.
+	 */
+	Map<String, Entry> getReduceEntries() {
+		return reduceEntries;
+	}
+
+	/**
+	 * Records a completed "MAP" task.
+	 *
+	 * @param Sx
+	 *            the split file.
+	 * @param host
+	 *            the slave host that ran the task.
+	 * @param UMx
+	 *            the UMx file produced, or null if none.
+	 * @param keys
+	 *            the keys found in the split file.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void logMap(final String Sx, final String host, final OutputFile UMx, final Collection<String> keys)
+	        throws IOException {
+		append(mapRecord(new Entry(Sx, host, UMx, new ArrayList<>(keys))));
+		// The keys are only needed to recover the task on replay: the job
+		// already holds them in its shuffle plan.
+		mapEntries.put(Sx, new Entry(Sx, host, UMx, Collections.<String>emptyList()));
+	}
+
+	/**
+	 * Records a completed "REDUCE" task.
+	 *
+	 * @param key
+	 *            the reduced key.
+	 * @param host
+	 *            the slave host that ran the task.
+	 * @param RMx
+	 *            the RMx file produced.
+	 * @param wordCount
+	 *            the word count computed by the task.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void logReduce(final String key, final String host, final OutputFile RMx, final String wordCount)
+	        throws IOException {
+		append(reduceRecord(new Entry(key, host, RMx, Arrays.asList(wordCount))));
+		// The word count is only needed to recover the task on replay: do not
+		// keep a second copy of the results in memory.
+		reduceEntries.put(key, new Entry(key, host, RMx, Collections.<String>emptyList()));
+		updateNextReduceIndex(RMx);
+	}
+
+	/**
+	 * Replays a journal record.
+	 *
+	 * @param record
+	 *            the record, or null if it was corrupted.
+	 */
+	private void replay(final String record) {
+		if (record == null) {
+			return;
+		}
+		final String[] fields = record.split(" ");
+		if (fields.length >= 6 && "MAP".equals(fields[0])) {
+			final OutputFile UMx = NO_FILE.equals(fields[3]) ? null
+			        : OutputFile.parse(fields[3] + " " + fields[4] + " " + fields[5]);
+			final List<String> keys = Arrays.asList(fields).subList(6, fields.length);
+			mapEntries.put(fields[1], new Entry(fields[1], fields[2], UMx, keys));
+		} else if (fields.length == 7 && "REDUCE".equals(fields[0])) {
+			final OutputFile RMx = OutputFile.parse(fields[3] + " " + fields[4] + " " + fields[5]);
+			reduceEntries.put(fields[1], new Entry(fields[1], fields[2], RMx, Arrays.asList(fields[6])));
+			updateNextReduceIndex(RMx);
+		}
+	}
+
+	/**
+	 * Forces the buffered records to disk. Called once per scheduling wave, so
+	 * that the cost of the journal does not grow with the number of tasks.
+	 *
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void sync() throws IOException {
+		writer.flush();
+		channel.force(false);
+	}
+
+	/**
+	 * Updates the next RMx index from a journaled RMx file.
+	 *
+	 * @param RMx
+	 *            the RMx file.
+	 */
+	private void updateNextReduceIndex(final OutputFile RMx) {
+		final String name = RMx.getPath().replaceFirst("^.*RM", "");
+		try {
+			nextReduceIndex = Math.max(nextReduceIndex, Integer.parseInt(name) + 1);
+		} catch (final NumberFormatException e) {
+			// Not a RMx file; ignore.
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package shavadoop;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Implements the resident Shavadoop master. It accepts jobs from clients over
+ * TCP, and runs them concurrently on a shared {@link Scheduler}, so that the
+ * slave membership and SSH connections are reused from one job to the next.
+ * <p>
+ * A client submits a job by sending a single line "<input-file> [<weight>
+ * [<journal-file> [exact|approx]]]", and receives a line back once the job is
+ * done: either the word counts, or "ERROR <message>". Approximate jobs (see
+ * {@link SketchSpec}) receive a second line with the estimated number of
+ * distinct words.
+ *
+ * @author zull
+ *
+ */
+public class MasterService {
+	/**
+	 * This class handles a client connection in a dedicated thread.
+	 */
+	private class ClientThread extends Thread {
+		private final Socket socket; // the client connection
+
+		/**
+		 * Creates a new instance of ClientThread.
+		 *
+		 * @param socket
+		 *            the client connection.
+		 */
+		ClientThread(final Socket socket) {
+			this.socket = socket;
+		}
+
+		/**
+		 * Called to run in its own dedicated thread. Reads the job
+		 * submission, runs the job and replies with its results.
+		 */
+		@Override
+		public void run() {
+			try (Socket s = socket;
+			        BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+			        PrintWriter writer = new PrintWriter(s.getOutputStream(), true)) {
+				final String line = reader.readLine();
+				if (line == null || line.trim().length() == 0) {
+					writer.println("ERROR Usage: <input-file> [<weight> [<journal-file> [exact|approx]]]");
+					return;
+				}
+				final String[] fields = line.trim().split("\\s+");
+				try {
+					final int weight = fields.length > 1 ? Integer.parseInt(fields[1]) : 1;
+					final String journalFile = fields.length > 2 ? fields[2] : fields[0] + ".journal";
+					final String mode = fields.length > 3 ? fields[3] : "exact";
+					if (!"exact".equals(mode) && !"approx".equals(mode)) {
+						throw new IllegalArgumentException("Unknown counting mode: " + mode);
+					}
+					final Job job = new Job(fields[0], journalFile, weight,
+					        "approx".equals(mode) ? SketchSpec.fromProperties() : null);
+					// Keep the job reserved until its results have been sent: a
+					// job resubmitted meanwhile would clear its result store.
+					reserve(job);
+					try (ResultStore results = runJob(job)) {
+						results.print(writer);
+						writer.println();
+					} finally {
+						release(job);
+					}
+					if (job.getDistinctWords() >= 0) {
+						writer.println("~" + job.getDistinctWords() + " distinct words");
+					}
+				} catch (final IOException | IllegalArgumentException e) {
+					writer.println("ERROR " + e.getMessage());
+				}
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Main entry point.
+	 *
+	 * @param args
+	 *            the arguments, in order: the slave host file, the remote host
+	 *            status file and the port to listen to.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	public static void main(final String[] args) throws IOException {
+		if (args.length < 3) {
+			throw new IllegalArgumentException("Usage: <remote-hosts-file> <remote-host-status-file> <port>");
+		}
+		new MasterService(args[0], args[1], Integer.parseInt(args[2]));
+	}
+
+	private final Set<String> activeJobs = new HashSet<>(); // the names of
+	                                                        // the active jobs
+	private final Set<String> activeJournals = new HashSet<>(); // the journal
+	                                                            // files of the
+	                                                            // active jobs
+	private final Cluster cluster; // the cluster of slave hosts
+	private final Scheduler scheduler; // the scheduler shared by all jobs
+
+	/**
+	 * Creates a new instance of MasterService, and serves job submissions
+	 * until the process is killed.
+	 *
+	 * @param slaveHostsFile
+	 *            the pathname of the file containing the list of candidate
+	 *            slave machines.
+	 * @param slaveHostsStatusFile
+	 *            the pathname of the file to write the slave machine status to.
+	 * @param port
+	 *            the TCP port to listen to.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	MasterService(final String slaveHostsFile, final String slaveHostsStatusFile, final int port)
+	        throws IOException {
+		cluster = new Cluster(slaveHostsFile, slaveHostsStatusFile);
+		cluster.getReachableSlaves();
+		scheduler = new Scheduler(cluster);
+		scheduler.start();
+		try (ServerSocket serverSocket = new ServerSocket(port)) {
+			System.err.println("Listening on port " + port + "...");
+			while (true) {
+				new ClientThread(serverSocket.accept()).start();
+			}
+		} finally {
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * Releases a job reserved by {@link #reserve(Job)}.
+	 *
+	 * @param job
+	 *            the job.
+	 */
+	private void release(final Job job) {
+		synchronized (activeJobs) {
+			activeJobs.remove(job.getName());
+			activeJournals.remove(Paths.get(job.getJournalFile()).toAbsolutePath().normalize().toString());
+		}
+	}
+
+	/**
+	 * Reserves the name (and thus scratch space) and the journal file of a
+	 * job, until it is released by {@link #release(Job)}.
+	 *
+	 * @param job
+	 *            the job.
+	 * @throws IOException
+	 *             if another job with the same name or the same journal file
+	 *             is active.
+	 */
+	private void reserve(final Job job) throws IOException {
+		final String journal = Paths.get(job.getJournalFile()).toAbsolutePath().normalize().toString();
+		synchronized (activeJobs) {
+			if (activeJobs.contains(job.getName()) || activeJournals.contains(journal)) {
+				throw new IOException("A job is already running on " + job.getInputFile() + " or "
+				        + job.getJournalFile());
+			}
+			activeJobs.add(job.getName());
+			activeJournals.add(journal);
+		}
+	}
+
+	/**
+	 * Prepares and runs a job, and waits for its completion. The job must
+	 * have been reserved by {@link #reserve(Job)}.
+	 *
+	 * @param job
+	 *            the job.
+	 * @return the word counts, to be closed by the caller.
+	 * @throws IOException
+	 *             if any I/O error occurred, or if the job failed.
+	 */
+	private ResultStore runJob(final Job job) throws IOException {
+		final List<String> reachableSlaves = cluster.getReachableSlaves();
+		if (reachableSlaves.isEmpty()) {
+			throw new IOException("No reachable slave hosts");
+		}
+		job.prepare(reachableSlaves);
+		scheduler.submit(job);
+		return job.waitFor();
+	}
+}
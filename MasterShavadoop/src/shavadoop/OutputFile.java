@@ -0,0 +1,84 @@
+package shavadoop;
+
+/**
+ * Describes a file produced by a slave task: its pathname, size and CRC32
+ * checksum, as reported by the slave.
+ *
+ * @author zull
+ *
+ */
+class OutputFile {
+	/**
+	 * Parses an output file descriptor, as printed by a slave or written to
+	 * the job journal ("<file> <size> <crc32>").
+	 *
+	 * @param descriptor
+	 *            the descriptor.
+	 * @return the OutputFile instance.
+	 */
+	static OutputFile parse(final String descriptor) {
+		final String[] fields = descriptor.split(" ");
+		if (fields.length != 3) {
+			throw new IllegalArgumentException("Invalid output file descriptor: " + descriptor);
+		}
+		return new OutputFile(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+	}
+
+	private final long checksum; // the CRC32 checksum of the file content
+
+	private final String path; // the pathname of the file
+
+	private final long size; // the size of the file, in bytes
+
+	/**
+	 * Creates a new instance of OutputFile.
+	 *
+	 * @param path
+	 *            the pathname of the file.
+	 * @param size
+	 *            the size of the file, in bytes.
+	 * @param checksum
+	 *            the CRC32 checksum of the file content.
+	 */
+	OutputFile(final String path, final long size, final long checksum) {
+		this.path = path;
+		this.size = size;
+		this.checksum = checksum;
+	}
+
+	/**
+	 * Returns the CRC32 checksum of the file content.
+	 *
+	 * @return the checksum.
+	 */
+	long getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * Returns the pathname of the file.
+	 *
+	 * @return the pathname.
+	 */
+	String getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the size of the file.
+	 *
+	 * @return the size, in bytes.
+	 */
+	long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the descriptor of this output file, in the format accepted by
+	 * {@link #parse(String)}.
+	 */
+	@Override
+	public String toString() {
+		return path + " " + size + " " + checksum;
+	}
+}
@@ -0,0 +1,689 @@
+package shavadoop;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Collects the (word, count) results of a job within a memory budget. Records
+ * are kept primitive-encoded rather than as "word:count" strings: the UTF-8
+ * bytes of all keys in a single array, and their offsets and counts in
+ * parallel int and long arrays.
+ * <p>
+ * When the records held in memory would exceed the budget, they are sorted and
+ * spilled to a segment file, and the final output is streamed from a merge of
+ * the segments and of the remaining in-memory records, by decreasing count,
+ * then by key. The store does not aggregate counts: each key is expected to be
+ * added once.
+ * <p>
+ * The budget covers the in-memory buffers, including the peak reached while a
+ * buffer is copied to a larger one, and the index arrays used to sort them;
+ * only the I/O buffers of the open segment files are left out, and at most
+ * {@link #MAX_SEGMENTS} segments are open at once. Segments are merged by
+ * levels, as in a log-structured merge: once {@link #MAX_SEGMENTS} segments of
+ * the same level exist, they are merged into one of the next level, so that
+ * each record is only rewritten once per level. The buffers start small and
+ * grow up to the budget, so that a small job does not allocate it all. The
+ * segment files are written to a directory of their own, deleted when the
+ * store is closed, and cleared when the store of the same job is created again
+ * after a crash.
+ * <p>
+ * Configured with the following system property:
+ * <ul>
+ * <li>shavadoop.results.memory: the maximum number of bytes of records held in
+ * memory (defaults to 64 MB).</li>
+ * </ul>
+ *
+ * @author zull
+ *
+ */
+class ResultStore implements Closeable {
+	/**
+	 * Streams the records of the store, by decreasing count, then by key.
+	 */
+	class Cursor implements Closeable {
+		private Run current = null; // the run holding the current record
+		private final PriorityQueue<Run> runs = new PriorityQueue<>(11, RUN_ORDER); // the
+		                                                                            // runs
+		                                                                            // to
+		                                                                            // merge
+
+		/**
+		 * Creates a new instance of Cursor, positioned before the first record.
+		 *
+		 * @param runs
+		 *            the sorted runs to merge.
+		 * @throws IOException
+		 *             if any I/O error occurred.
+		 */
+		private Cursor(final List<Run> runs) throws IOException {
+			for (final Run run : runs) {
+				if (run.advance()) {
+					this.runs.add(run);
+				} else {
+					run.close();
+				}
+			}
+		}
+
+		/**
+		 * Closes the segment files still open.
+		 *
+		 * @throws IOException
+		 *             if any I/O error occurred.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+			while (!runs.isEmpty()) {
+				runs.poll().close();
+			}
+		}
+
+		/**
+		 * Returns the count of the current record.
+		 *
+		 * @return the count.
+		 */
+		long getCount() {
+			return current.count;
+		}
+
+		/**
+		 * Returns the key of the current record.
+		 *
+		 * @return the key.
+		 */
+		String getKey() {
+			return new String(current.key, current.keyOffset, current.keyLength, UTF8);
+		}
+
+		/**
+		 * Moves to the next record.
+		 *
+		 * @return false if there are no more records.
+		 * @throws IOException
+		 *             if any I/O error occurred.
+		 */
+		boolean next() throws IOException {
+			if (current != null) {
+				if (current.advance()) {
+					runs.add(current);
+				} else {
+					current.close();
+				}
+			}
+			current = runs.poll();
+			return current != null;
+		}
+	}
+
+	/**
+	 * Iterates over the records of the in-memory buffer, in sorted order.
+	 */
+	private class MemoryRun extends Run {
+		private int index = 0; // the position of the next record in the order
+		private final int[] order; // the indices of the records, sorted
+
+		/**
+		 * Creates a new instance of MemoryRun.
+		 */
+		MemoryRun() {
+			order = sortRecords();
+		}
+
+		@Override
+		boolean advance() {
+			if (index == order.length) {
+				return false;
+			}
+			final int i = order[index++];
+			key = keys;
+			keyOffset = offsets[i];
+			keyLength = keyLength(i);
+			count = counts[i];
+			return true;
+		}
+	}
+
+	/**
+	 * Holds the current record of a sorted run of records.
+	 */
+	private abstract static class Run implements Closeable {
+		long count; // the count of the current record
+		byte[] key; // the array holding the key of the current record
+		int keyLength; // the length of the key
+		int keyOffset; // the offset of the key in the array
+
+		/**
+		 * Moves to the next record of the run.
+		 *
+		 * @return false if the run is exhausted.
+		 * @throws IOException
+		 *             if any I/O error occurred.
+		 */
+		abstract boolean advance() throws IOException;
+
+		/**
+		 * Releases the resources of the run.
+		 *
+		 * @throws IOException
+		 *             if any I/O error occurred.
+		 */
+		@Override
+		public void close() throws IOException {
+		}
+	}
+
+	/**
+	 * Reads the records of a segment file, in the order they were spilled.
+	 */
+	private static class SegmentRun extends Run {
+		private final DataInputStream in; // the segment file
+
+		/**
+		 * Creates a new instance of SegmentRun.
+		 *
+		 * @param segment
+		 *            the segment file.
+		 * @throws IOException
+		 *             if any I/O error occurred.
+		 */
+		SegmentRun(final Path segment) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)));
+			key = new byte[64];
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			try {
+				keyLength = in.readInt();
+			} catch (final EOFException e) {
+				return false;
+			}
+			if (keyLength > key.length) {
+				key = new byte[Math.max(keyLength, 2 * key.length)];
+			}
+			in.readFully(key, 0, keyLength);
+			count = in.readLong();
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	static final int MAX_SEGMENTS = 64; // the number of segments merged at once
+
+	static final long MEMORY_BUDGET = Long.getLong("shavadoop.results.memory", 64L << 20); // records
+	                                                                                       // memory
+
+	private static final int RECORD_BYTES = 12; // the bytes of a record in
+	                                            // the offsets and counts
+
+	private static final int SORT_BYTES = 8; // the bytes of a record in the
+	                                         // sort arrays
+
+	private static final Comparator<Run> RUN_ORDER = new Comparator<Run>() {
+
+		@Override
+		public int compare(final Run o1, final Run o2) {
+			return compareRecords(o1.key, o1.keyOffset, o1.keyLength, o1.count, o2.key, o2.keyOffset, o2.keyLength,
+			        o2.count);
+		}
+
+	};
+
+	private static final Charset UTF8 = Charset.forName("UTF-8"); // the key
+	                                                              // encoding
+
+	/**
+	 * Compares two records: by decreasing count, then by the unsigned bytes of
+	 * their keys.
+	 *
+	 * @param key1
+	 *            the array holding the key of the first record.
+	 * @param offset1
+	 *            the offset of the key of the first record.
+	 * @param length1
+	 *            the length of the key of the first record.
+	 * @param count1
+	 *            the count of the first record.
+	 * @param key2
+	 *            the array holding the key of the second record.
+	 * @param offset2
+	 *            the offset of the key of the second record.
+	 * @param length2
+	 *            the length of the key of the second record.
+	 * @param count2
+	 *            the count of the second record.
+	 * @return a negative number if the first record comes first, a positive
+	 *         number if the second one does, 0 if they are equal.
+	 */
+	private static int compareRecords(final byte[] key1, final int offset1, final int length1, final long count1,
+	        final byte[] key2, final int offset2, final int length2, final long count2) {
+		if (count1 != count2) {
+			return count1 > count2 ? -1 : 1;
+		}
+		for (int i = 0; i < Math.min(length1, length2); i++) {
+			final int b1 = key1[offset1 + i] & 0xff;
+			final int b2 = key2[offset2 + i] & 0xff;
+			if (b1 != b2) {
+				return b1 - b2;
+			}
+		}
+		return length1 - length2;
+	}
+
+	private final long budget; // the maximum number of bytes held in memory
+	private long[] counts; // the counts of the records
+	private final Path dir; // the directory of the segment files
+	private byte[] keys; // the UTF-8 keys of the records
+	private int keysLength = 0; // the number of bytes used in keys
+	private final List<List<Path>> levels = new ArrayList<>(); // the segment
+	                                                           // files, by
+	                                                           // number of
+	                                                           // merges
+	private int nextSegment = 0; // the index of the next segment file
+	private int[] offsets; // the offsets of the keys
+	private int size = 0; // the number of records held in memory
+
+	/**
+	 * Creates an empty result store, deleting the segment files left in its
+	 * directory by a previous run.
+	 *
+	 * @param dir
+	 *            the directory of the segment files, created upon the first
+	 *            spill.
+	 * @param budget
+	 *            the maximum number of bytes of records held in memory.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	ResultStore(final Path dir, final long budget) throws IOException {
+		this.dir = dir;
+		this.budget = budget;
+		final int records = (int) Math.max(1, Math.min(1024, budget / 64));
+		counts = new long[records];
+		offsets = new int[records];
+		keys = new byte[(int) Math.max(16, Math.min(16384, budget / 4))];
+		if (Files.isDirectory(dir)) {
+			try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(dir)) {
+				for (final Path segment : leftovers) {
+					Files.delete(segment);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a record.
+	 *
+	 * @param key
+	 *            the key (word).
+	 * @param count
+	 *            the count.
+	 * @throws IOException
+	 *             if the records could not be spilled.
+	 */
+	void add(final String key, final long count) throws IOException {
+		final byte[] bytes = key.getBytes(UTF8);
+		// Spill rather than grow the buffers past the budget.
+		if (size == counts.length && !growRecords()) {
+			spill();
+		}
+		if (keysLength + bytes.length > keys.length && !growKeys(keysLength + bytes.length) && size > 0) {
+			spill();
+		}
+		if (bytes.length > keys.length) {
+			// A single key larger than the budget allows is still stored.
+			keys = Arrays.copyOf(keys, bytes.length);
+		}
+		System.arraycopy(bytes, 0, keys, keysLength, bytes.length);
+		offsets[size] = keysLength;
+		counts[size] = count;
+		keysLength += bytes.length;
+		size++;
+	}
+
+	/**
+	 * Adds a record from its "word:count" representation, as reported by the
+	 * slaves.
+	 *
+	 * @param wordCount
+	 *            the "word:count" pair.
+	 * @throws IOException
+	 *             if the pair is malformed, or if the records could not be
+	 *             spilled.
+	 */
+	void add(final String wordCount) throws IOException {
+		final int sep = wordCount.lastIndexOf(':');
+		try {
+			if (sep < 0) {
+				throw new NumberFormatException("no ':' separator");
+			}
+			add(wordCount.substring(0, sep), Long.parseLong(wordCount.substring(sep + 1)));
+		} catch (final NumberFormatException e) {
+			throw new IOException("Malformed word count: " + wordCount, e);
+		}
+	}
+
+	/**
+	 * Adds a segment file to the specified level, and merges the segments of
+	 * that level into one of the next level once there are
+	 * {@link #MAX_SEGMENTS} of them.
+	 *
+	 * @param level
+	 *            the level: the number of merges the records of the segment
+	 *            went through.
+	 * @param segment
+	 *            the segment file.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void addSegment(final int level, final Path segment) throws IOException {
+		while (levels.size() <= level) {
+			levels.add(new ArrayList<Path>());
+		}
+		final List<Path> segments = levels.get(level);
+		segments.add(segment);
+		if (segments.size() >= MAX_SEGMENTS) {
+			final Path merged = mergeSegments(segments);
+			segments.clear();
+			addSegment(level + 1, merged);
+		}
+	}
+
+	/**
+	 * Deletes the segment files and releases the memory of the store.
+	 *
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (final List<Path> segments : levels) {
+			for (final Path segment : segments) {
+				Files.deleteIfExists(segment);
+			}
+		}
+		levels.clear();
+		Files.deleteIfExists(dir);
+		counts = new long[0];
+		keys = new byte[0];
+		offsets = new int[0];
+		keysLength = 0;
+		size = 0;
+	}
+
+	/**
+	 * Opens a cursor over all the records of the store. If there are more than
+	 * {@link #MAX_SEGMENTS} segment files, the smallest ones, of the lowest
+	 * levels, are merged first, so that they can all be opened at once. No
+	 * record may be added while a cursor is open.
+	 *
+	 * @return the cursor, to be closed after use.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	Cursor cursor() throws IOException {
+		final int excess = getSegmentCount() - MAX_SEGMENTS;
+		if (excess > 0) {
+			final List<Path> group = new ArrayList<>();
+			int level = 0;
+			for (; group.size() <= excess; level++) {
+				final List<Path> segments = levels.get(level);
+				group.addAll(segments.subList(0, Math.min(segments.size(), excess + 1 - group.size())));
+			}
+			final Path merged = mergeSegments(group);
+			for (final List<Path> segments : levels) {
+				segments.removeAll(group);
+			}
+			addSegment(level, merged);
+		}
+		final List<Path> segments = new ArrayList<>();
+		for (final List<Path> level : levels) {
+			segments.addAll(level);
+		}
+		return openCursor(segments, true);
+	}
+
+	/**
+	 * Returns the number of segment files spilled or merged so far, and not
+	 * merged since.
+	 *
+	 * @return the number of segments.
+	 */
+	int getSegmentCount() {
+		int count = 0;
+		for (final List<Path> segments : levels) {
+			count += segments.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Grows the key buffer within the budget, if possible: while the buffer is
+	 * copied, the old and new buffers are both held in memory.
+	 *
+	 * @param length
+	 *            the minimum length of the key buffer.
+	 * @return false if the key buffer cannot grow to that length within the
+	 *         budget.
+	 */
+	private boolean growKeys(final int length) {
+		final long records = counts.length;
+		final long capacity = Math.min(Math.min(Math.max(2L * keys.length, length), Integer.MAX_VALUE - 8),
+		        Math.min(budget - (RECORD_BYTES + SORT_BYTES) * records, budget - keys.length - RECORD_BYTES * records));
+		if (capacity < length) {
+			return false;
+		}
+		keys = Arrays.copyOf(keys, (int) capacity);
+		return true;
+	}
+
+	/**
+	 * Grows the record buffers within the budget, if possible: while the
+	 * buffers are copied, the old and new buffers are both held in memory, and
+	 * the sort arrays must still fit once they have grown.
+	 *
+	 * @return false if the record buffers cannot grow within the budget.
+	 */
+	private boolean growRecords() {
+		final long records = counts.length;
+		final long capacity = Math.min(Math.min(2 * records, Integer.MAX_VALUE - 8), Math.min(
+		        (budget - keys.length) / (RECORD_BYTES + SORT_BYTES), (budget - keys.length) / RECORD_BYTES - records));
+		if (capacity <= records) {
+			return false;
+		}
+		counts = Arrays.copyOf(counts, (int) capacity);
+		offsets = Arrays.copyOf(offsets, (int) capacity);
+		return true;
+	}
+
+	/**
+	 * Returns the length of the key of the specified in-memory record.
+	 *
+	 * @param i
+	 *            the index of the record.
+	 * @return the length of the key, in bytes.
+	 */
+	private int keyLength(final int i) {
+		return (i + 1 < size ? offsets[i + 1] : keysLength) - offsets[i];
+	}
+
+	/**
+	 * Merges the specified segment files into a new one, and deletes them.
+	 *
+	 * @param segments
+	 *            the segment files to merge.
+	 * @return the merged segment file.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private Path mergeSegments(final List<Path> segments) throws IOException {
+		final Path merged = dir.resolve("segment" + nextSegment++);
+		try (Cursor cursor = openCursor(segments, false);
+		        DataOutputStream out = new DataOutputStream(
+		                new BufferedOutputStream(Files.newOutputStream(merged)))) {
+			while (cursor.next()) {
+				out.writeInt(cursor.current.keyLength);
+				out.write(cursor.current.key, cursor.current.keyOffset, cursor.current.keyLength);
+				out.writeLong(cursor.current.count);
+			}
+		}
+		for (final Path segment : segments) {
+			Files.delete(segment);
+		}
+		return merged;
+	}
+
+	/**
+	 * Opens a cursor over the specified segment files, and optionally the
+	 * in-memory records.
+	 *
+	 * @param segments
+	 *            the segment files.
+	 * @param memory
+	 *            whether to include the in-memory records.
+	 * @return the cursor, to be closed after use.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private Cursor openCursor(final List<Path> segments, final boolean memory) throws IOException {
+		final List<Run> runs = new ArrayList<>();
+		try {
+			for (final Path segment : segments) {
+				runs.add(new SegmentRun(segment));
+			}
+			if (memory) {
+				runs.add(new MemoryRun());
+			}
+			return new Cursor(runs);
+		} catch (final IOException e) {
+			for (final Run run : runs) {
+				run.close();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Prints all the records of the store, in the "[word:count, ...]" format
+	 * of a list of "word:count" strings, without holding them in memory.
+	 *
+	 * @param out
+	 *            the output to print to.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void print(final Appendable out) throws IOException {
+		out.append('[');
+		try (Cursor cursor = cursor()) {
+			boolean first = true;
+			while (cursor.next()) {
+				if (!first) {
+					out.append(", ");
+				}
+				out.append(cursor.getKey()).append(':').append(String.valueOf(cursor.getCount()));
+				first = false;
+			}
+		}
+		out.append(']');
+	}
+
+	/**
+	 * Sorts the in-memory records with a merge sort of their indices, so that
+	 * no record object is created.
+	 *
+	 * @param order
+	 *            the indices to sort.
+	 * @param buffer
+	 *            a work array of the same length.
+	 * @param from
+	 *            the first index of the range to sort.
+	 * @param to
+	 *            the end (exclusive) of the range to sort.
+	 */
+	private void sort(final int[] order, final int[] buffer, final int from, final int to) {
+		if (to - from < 2) {
+			return;
+		}
+		final int mid = (from + to) >>> 1;
+		sort(order, buffer, from, mid);
+		sort(order, buffer, mid, to);
+		int i = from;
+		int j = mid;
+		int k = from;
+		while (i < mid && j < to) {
+			final int a = order[i];
+			final int b = order[j];
+			if (compareRecords(keys, offsets[b], keyLength(b), counts[b], keys, offsets[a], keyLength(a),
+			        counts[a]) < 0) {
+				buffer[k++] = order[j++];
+			} else {
+				buffer[k++] = order[i++];
+			}
+		}
+		System.arraycopy(order, i, buffer, k, mid - i);
+		System.arraycopy(order, j, buffer, k + mid - i, to - j);
+		System.arraycopy(buffer, from, order, from, to - from);
+	}
+
+	/**
+	 * Returns the indices of the in-memory records, sorted.
+	 *
+	 * @return the sorted indices.
+	 */
+	private int[] sortRecords() {
+		final int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		sort(order, new int[size], 0, size);
+		return order;
+	}
+
+	/**
+	 * Sorts the in-memory records, writes them to a new segment file of the
+	 * lowest level and empties the in-memory buffer.
+	 *
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void spill() throws IOException {
+		Files.createDirectories(dir);
+		final Path segment = dir.resolve("segment" + nextSegment++);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(segment)))) {
+			for (final int i : sortRecords()) {
+				out.writeInt(keyLength(i));
+				out.write(keys, offsets[i], keyLength(i));
+				out.writeLong(counts[i]);
+			}
+		} catch (final IOException e) {
+			Files.deleteIfExists(segment);
+			throw e;
+		}
+		size = 0;
+		keysLength = 0;
+		addSegment(0, segment);
+	}
+}
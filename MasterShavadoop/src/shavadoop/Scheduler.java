@@ -0,0 +1,314 @@
+package shavadoop;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Schedules the tasks of the submitted jobs on the slave hosts, in its own
+ * dedicated thread.
+ * <p>
+ * Each slave host offers a number of task slots, set by the "shavadoop.slots"
+ * system property (defaults to 1). Whenever a slot is free, it is given to the
+ * job that has a task ready and the fewest running tasks relative to its
+ * weight, so that concurrent jobs share the slots fairly and a short job does
+ * not wait behind a long one. The completed tasks are committed in batches, so
+ * that journal writes do not slow down the scheduling.
+ * <p>
+ * A slave host that reported too little free space gets no more tasks, and
+ * thus no longer reports its free space along with their outputs. Such a host
+ * is probed again whenever tasks have committed (and possibly released
+ * intermediate files) since its last report, and a few more times, every
+ * {@link #PROBE_DELAY} milliseconds, when such hosts are all that prevents
+ * the jobs from making progress.
+ *
+ * @author zull
+ *
+ */
+class Scheduler extends Thread implements SlaveThread.Listener {
+	static final int MAX_IDLE_PROBES = 3; // the number of delayed probes
+	                                      // before failing the blocked jobs
+
+	static final long PROBE_DELAY = 5000; // the delay between the probes of
+	                                      // the hosts blocking all the jobs
+
+	static final int SLOTS = Integer.getInteger("shavadoop.slots", 1); // the
+	                                                                   // slots
+	                                                                   // per
+	                                                                   // host
+
+	private final Map<String, Integer> busySlots = new HashMap<>(); // the
+	                                                                // busy
+	                                                                // slots
+	                                                                // per host
+	private final Cluster cluster; // the cluster of slave hosts
+	private long commits = 0; // the number of job commits so far
+	private int idleProbes = 0; // the number of delayed probes since the last
+	                            // task started
+	private final List<SlaveThread> completed = new ArrayList<>(); // the
+	                                                               // tasks
+	                                                               // completed
+	                                                               // since the
+	                                                               // last loop
+	private final List<Job> jobs = new ArrayList<>(); // the active jobs, in
+	                                                  // submission order
+	private long probeTime = 0; // the time of the next delayed probe, in
+	                            // milliseconds (0 if none)
+	private final Map<String, SlaveThread> probes = new HashMap<>(); // the
+	                                                                 // running
+	                                                                 // free
+	                                                                 // space
+	                                                                 // probes
+	private final Map<String, Long> reportCommits = new HashMap<>(); // the
+	                                                                 // commits
+	                                                                 // at each
+	                                                                 // host's
+	                                                                 // last
+	                                                                 // report
+	private final Map<SlaveThread, Job> running = new HashMap<>(); // the
+	                                                               // running
+	                                                               // tasks
+	private boolean shutdown = false; // whether a shutdown was requested
+	private final List<Job> submitted = new ArrayList<>(); // the jobs
+	                                                       // submitted since
+	                                                       // the last loop
+
+	/**
+	 * Creates a new instance of Scheduler.
+	 *
+	 * @param cluster
+	 *            the cluster of slave hosts to schedule the tasks on.
+	 */
+	Scheduler(final Cluster cluster) {
+		super("Scheduler");
+		this.cluster = cluster;
+	}
+
+	/**
+	 * Starts as many tasks as there are free slots on the slave hosts with
+	 * enough free space, probes the free space of the other hosts if it may
+	 * have changed, then fails the jobs that cannot make progress.
+	 *
+	 * @param slaves
+	 *            the list of reachable slave hosts.
+	 */
+	private void dispatch(final List<String> slaves) {
+		final Set<String> fullSlaves = new LinkedHashSet<>();
+		boolean started = true;
+		while (started) {
+			started = false;
+			for (final String slave : slaves) {
+				final int busy = busySlots.containsKey(slave) ? busySlots.get(slave) : 0;
+				if (busy >= SLOTS) {
+					continue;
+				} else if (!cluster.hasFreeSpace(slave)) {
+					fullSlaves.add(slave);
+					continue;
+				}
+				final Job job = nextJob();
+				if (job == null) {
+					return;
+				}
+				try {
+					final SlaveThread slaveThread = job.nextTask(slave);
+					slaveThread.setListener(this);
+					running.put(slaveThread, job);
+					busySlots.put(slave, busy + 1);
+					slaveThread.start();
+					started = true;
+					idleProbes = 0;
+				} catch (final IOException | RuntimeException e) {
+					fail(job, e);
+				}
+			}
+		}
+		final boolean probeDue = probeTime > 0 && System.currentTimeMillis() >= probeTime;
+		if (probeDue) {
+			probeTime = 0;
+		}
+		if (nextJob() != null) {
+			for (final String slave : fullSlaves) {
+				final Long reported = reportCommits.get(slave);
+				if (!probes.containsKey(slave) && (probeDue || (reported == null ? 0 : reported) < commits)) {
+					probe(slave);
+				}
+			}
+		}
+		// No task could be started, and none is running to free a slot or
+		// space: wait for space on the full hosts a few times, then give up.
+		if (running.isEmpty() && probes.isEmpty() && probeTime == 0) {
+			if (!fullSlaves.isEmpty() && nextJob() != null && idleProbes < MAX_IDLE_PROBES) {
+				idleProbes++;
+				probeTime = System.currentTimeMillis() + PROBE_DELAY;
+				System.err.println("Waiting for free space on " + fullSlaves + "...");
+				return;
+			}
+			idleProbes = 0;
+			for (final Job job : new ArrayList<>(jobs)) {
+				if (job.hasPendingTask()) {
+					fail(job, new IOException("No slave host available for " + job.getInputFile()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fails a job and removes it from the active jobs. Unexpected errors only
+	 * fail the job that raised them, so that the scheduler thread keeps
+	 * serving the other jobs.
+	 *
+	 * @param job
+	 *            the job.
+	 * @param cause
+	 *            the cause of the failure: an I/O error, or an unexpected
+	 *            runtime exception.
+	 */
+	private void fail(final Job job, final Exception cause) {
+		System.err.println("Job " + job.getInputFile() + " failed: " + cause.getMessage());
+		if (cause instanceof RuntimeException) {
+			cause.printStackTrace();
+		}
+		jobs.remove(job);
+		job.fail(cause instanceof IOException ? (IOException) cause
+		        : new IOException("Unexpected error: " + cause, cause));
+	}
+
+	/**
+	 * Returns the job to give the next free slot to: the one with a task ready
+	 * and the fewest running tasks relative to its weight, the earliest
+	 * submitted in case of a tie.
+	 *
+	 * @return the job, or null if no job has a task ready.
+	 */
+	private Job nextJob() {
+		Job next = null;
+		for (final Job job : jobs) {
+			if (job.hasPendingTask() && (next == null
+			        || job.getRunningTasks() * next.getWeight() < next.getRunningTasks() * job.getWeight())) {
+				next = job;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Probes the free space of a slave host, without running a task on it.
+	 *
+	 * @param slave
+	 *            the slave host.
+	 */
+	private void probe(final String slave) {
+		final SlaveThread probe = SlaveThread.createFreeSpaceSlaveThread(slave, ScratchSpace.ROOT);
+		probe.setListener(this);
+		probes.put(slave, probe);
+		probe.start();
+	}
+
+	/**
+	 * Called to run in its own dedicated thread. Loops over the completed
+	 * tasks and submitted jobs, and dispatches the ready tasks on the free
+	 * slots, until shut down.
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			final List<Job> newJobs;
+			final List<SlaveThread> newlyCompleted;
+			synchronized (this) {
+				while (submitted.isEmpty() && completed.isEmpty()
+				        && !(shutdown && jobs.isEmpty() && running.isEmpty())) {
+					final long delay = probeTime - System.currentTimeMillis();
+					if (probeTime > 0 && delay <= 0) {
+						break;
+					}
+					try {
+						wait(probeTime > 0 ? delay : 0);
+					} catch (final InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+				if (submitted.isEmpty() && completed.isEmpty() && probeTime == 0) {
+					return;
+				}
+				newJobs = new ArrayList<>(submitted);
+				submitted.clear();
+				newlyCompleted = new ArrayList<>(completed);
+				completed.clear();
+			}
+			jobs.addAll(newJobs);
+			final Set<Job> updatedJobs = new LinkedHashSet<>(newJobs);
+			for (final SlaveThread slaveThread : newlyCompleted) {
+				final String slave = slaveThread.getHost();
+				if (slaveThread.getFreeSpace() >= 0) {
+					cluster.updateFreeSpace(slave, slaveThread.getFreeSpace());
+					reportCommits.put(slave, commits);
+				}
+				if (probes.get(slave) == slaveThread) {
+					probes.remove(slave);
+					continue;
+				}
+				busySlots.put(slave, busySlots.get(slave) - 1);
+				final Job job = running.remove(slaveThread);
+				if (jobs.contains(job)) {
+					try {
+						job.taskCompleted(slaveThread);
+						updatedJobs.add(job);
+					} catch (final IOException | RuntimeException e) {
+						fail(job, e);
+					}
+				}
+			}
+			// Commit the completed tasks once per job and per loop.
+			for (final Job job : updatedJobs) {
+				if (jobs.contains(job)) {
+					try {
+						job.commit();
+						commits++;
+						if (job.isDone()) {
+							System.err.println("Job " + job.getInputFile() + " completed.");
+							jobs.remove(job);
+						}
+					} catch (final IOException | RuntimeException e) {
+						fail(job, e);
+					}
+				}
+			}
+			dispatch(cluster.getCachedReachableSlaves());
+		}
+	}
+
+	/**
+	 * Requests the scheduler to stop, once all the submitted jobs are done.
+	 */
+	synchronized void shutdown() {
+		shutdown = true;
+		notifyAll();
+	}
+
+	/**
+	 * Called from the completed SlaveThread.
+	 *
+	 * @param slaveThread
+	 *            the completed SlaveThread.
+	 */
+	@Override
+	public synchronized void slaveThreadCompleted(final SlaveThread slaveThread) {
+		completed.add(slaveThread);
+		notifyAll();
+	}
+
+	/**
+	 * Submits a prepared job.
+	 *
+	 * @param job
+	 *            the job.
+	 */
+	synchronized void submit(final Job job) {
+		submitted.add(job);
+		notifyAll();
+	}
+}
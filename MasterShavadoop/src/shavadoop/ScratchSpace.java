@@ -0,0 +1,188 @@
+package shavadoop;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Manages the scratch directory of a job, where the intermediate Sx, UMx, SMx
+ * and RMx files are written.
+ * <p>
+ * Files are spread over 256 subdirectories according to the hash of their
+ * name, so that no single directory holds millions of entries. The space used
+ * by the job is accounted for against a configurable quota, and the whole
+ * directory is deleted once the job completes.
+ * <p>
+ * Configured with the following system properties:
+ * <ul>
+ * <li>shavadoop.scratch.dir: the root of the scratch directories (defaults to
+ * "scratch"),</li>
+ * <li>shavadoop.scratch.quota: the maximum number of bytes a job may use
+ * (defaults to 0, no quota),</li>
+ * <li>shavadoop.scratch.minFree: the minimum free space, in bytes, a slave
+ * host must report to be assigned tasks (defaults to 64 MB).</li>
+ * </ul>
+ *
+ * @author zull
+ *
+ */
+class ScratchSpace {
+	static final long MIN_FREE_SPACE = Long.getLong("shavadoop.scratch.minFree", 64L << 20); // slave
+	                                                                                         // free
+	                                                                                         // space
+
+	static final long QUOTA = Long.getLong("shavadoop.scratch.quota", 0L); // job
+	                                                                       // quota
+
+	static final String ROOT = System.getProperty("shavadoop.scratch.dir", "scratch"); // scratch
+	                                                                                   // root
+
+	/**
+	 * Returns the name identifying a job, and its scratch directory: the file
+	 * name of its input file, for readability, followed by the SHA-1 of the
+	 * absolute pathnames of its input and journal files, so that distinct jobs
+	 * never share a scratch directory.
+	 *
+	 * @param inputFile
+	 *            the input file of the job.
+	 * @param journalFile
+	 *            the journal file of the job.
+	 * @return the name of the job.
+	 */
+	static String jobName(final String inputFile, final String journalFile) {
+		final Path input = Paths.get(inputFile).toAbsolutePath().normalize();
+		final Path journal = Paths.get(journalFile).toAbsolutePath().normalize();
+		final byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1")
+			        .digest((input + "\n" + journal).getBytes(Charset.forName("UTF-8")));
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		final StringBuilder name = new StringBuilder(input.getFileName().toString().replaceAll("[^A-Za-z0-9._-]", "_"));
+		name.append('-');
+		for (final byte b : digest) {
+			name.append(String.format("%02x", b & 0xff));
+		}
+		return name.toString();
+	}
+
+	private final Set<Path> buckets = new HashSet<>(); // the subdirectories
+	                                                   // already created
+
+	private final Path dir; // the scratch directory of the job
+
+	private long usage = 0; // the number of bytes currently used by the job
+
+	/**
+	 * Creates the scratch space of the job identified by the specified name.
+	 * The scratch directory of a job is stable across master restarts, so that
+	 * the intermediate files of a resumed job are found again. The files left
+	 * by a previous run are not accounted for: a resumed job allocates the
+	 * outputs it keeps, and the others are rewritten or deleted.
+	 *
+	 * @param jobName
+	 *            the name of the job, as returned by
+	 *            {@link #jobName(String, String)}.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	ScratchSpace(final String jobName) throws IOException {
+		dir = Paths.get(ROOT, jobName);
+		Files.createDirectories(dir);
+	}
+
+	/**
+	 * Accounts for the specified number of bytes written to the scratch
+	 * directory.
+	 *
+	 * @param size
+	 *            the number of bytes.
+	 * @throws IOException
+	 *             if the quota of the job is exceeded.
+	 */
+	void allocate(final long size) throws IOException {
+		usage += size;
+		if (QUOTA > 0 && usage > QUOTA) {
+			throw new IOException("Scratch quota exceeded in " + dir + ": " + usage + " > " + QUOTA + " bytes");
+		}
+	}
+
+	/**
+	 * Deletes the scratch directory of the job, and everything in it.
+	 *
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void delete() throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult postVisitDirectory(final Path d, final IOException e) throws IOException {
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+		});
+		usage = 0;
+	}
+
+	/**
+	 * Returns the pathname of the specified file in the scratch directory,
+	 * creating its hashed subdirectory if needed.
+	 *
+	 * @param name
+	 *            the file name (eg. "S0", "RM12").
+	 * @return the pathname of the file.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	Path file(final String name) throws IOException {
+		final Path bucket = dir.resolve(String.format("%02x", name.hashCode() & 0xff));
+		if (buckets.add(bucket)) {
+			Files.createDirectories(bucket);
+		}
+		return bucket.resolve(name);
+	}
+
+	/**
+	 * Returns the scratch directory of the job.
+	 *
+	 * @return the scratch directory.
+	 */
+	Path getDir() {
+		return dir;
+	}
+
+	/**
+	 * Deletes the specified intermediate file, once all its consumers have
+	 * committed.
+	 *
+	 * @param file
+	 *            the pathname of the file.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void release(final String file) throws IOException {
+		final Path path = Paths.get(file);
+		if (Files.exists(path)) {
+			usage -= Files.size(path);
+			Files.delete(path);
+		}
+	}
+}
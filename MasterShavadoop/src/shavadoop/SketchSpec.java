@@ -0,0 +1,98 @@
+package shavadoop;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Describes the error bounds of the approximate counting mode, in which the
+ * slaves build mergeable word sketches of their splits and the shuffle/reduce
+ * stage is replaced by a single merge of these sketches.
+ * <p>
+ * Configured with the following system properties:
+ * <ul>
+ * <li>shavadoop.approx.epsilon: the maximum overestimate of word counts,
+ * relative to the total number of words (defaults to 0.001),</li>
+ * <li>shavadoop.approx.delta: the probability that a word count exceeds that
+ * bound (defaults to 0.01),</li>
+ * <li>shavadoop.approx.precision: the HyperLogLog precision; the distinct word
+ * count has a standard error of about 1.04 / sqrt(2^precision) (defaults to
+ * 14, ie. 0.8%),</li>
+ * <li>shavadoop.approx.topN: the number of most frequent words reported
+ * (defaults to 100).</li>
+ * </ul>
+ *
+ * @author zull
+ *
+ */
+class SketchSpec {
+	/**
+	 * Creates a SketchSpec instance from the system properties.
+	 *
+	 * @return the SketchSpec instance.
+	 */
+	static SketchSpec fromProperties() {
+		return new SketchSpec(Double.parseDouble(System.getProperty("shavadoop.approx.epsilon", "0.001")),
+		        Double.parseDouble(System.getProperty("shavadoop.approx.delta", "0.01")),
+		        Integer.getInteger("shavadoop.approx.precision", 14), Integer.getInteger("shavadoop.approx.topN", 100));
+	}
+
+	private final double delta; // the failure probability of the word counts
+
+	private final double epsilon; // the relative error of the word counts
+
+	private final int precision; // the HyperLogLog precision
+
+	private final int topN; // the number of most frequent words reported
+
+	/**
+	 * Creates a new instance of SketchSpec.
+	 *
+	 * @param epsilon
+	 *            the maximum overestimate of word counts, relative to the total
+	 *            number of words.
+	 * @param delta
+	 *            the probability that a word count exceeds that bound.
+	 * @param precision
+	 *            the HyperLogLog precision, between 4 and 18.
+	 * @param topN
+	 *            the number of most frequent words reported.
+	 */
+	SketchSpec(final double epsilon, final double delta, final int precision, final int topN) {
+		if (epsilon <= 0 || epsilon >= 1 || delta <= 0 || delta >= 1 || precision < 4 || precision > 18
+		        || topN <= 0) {
+			throw new IllegalArgumentException("Invalid approximate mode parameters: " + epsilon + ", " + delta + ", "
+			        + precision + ", " + topN);
+		}
+		this.epsilon = epsilon;
+		this.delta = delta;
+		this.precision = precision;
+		this.topN = topN;
+	}
+
+	/**
+	 * Returns the parameters of the slave "SKETCH" command.
+	 *
+	 * @return the epsilon, delta and precision parameters.
+	 */
+	List<String> getSketchParams() {
+		return Arrays.asList(String.valueOf(epsilon), String.valueOf(delta), String.valueOf(precision));
+	}
+
+	/**
+	 * Returns the number of most frequent words reported.
+	 *
+	 * @return the number of words.
+	 */
+	int getTopN() {
+		return topN;
+	}
+
+	/**
+	 * Returns the description of the approximate mode, as recorded in the job
+	 * journal.
+	 */
+	@Override
+	public String toString() {
+		return "APPROX " + epsilon + " " + delta + " " + precision + " " + topN;
+	}
+}
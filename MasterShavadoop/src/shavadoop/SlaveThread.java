@@ -7,9 +7,8 @@ import java.io.InputStreamReader;
 import java.lang.ProcessBuilder.Redirect;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 /**
  * This class handles the remote execution of a specific slave in a dedicated
@@ -19,13 +18,47 @@ import java.util.Set;
  *
  */
 class SlaveThread extends Thread {
+	/**
+	 * Notified when the remote execution of a SlaveThread has completed,
+	 * whether successfully or not.
+	 */
+	interface Listener {
+		/**
+		 * Called from the completed SlaveThread.
+		 *
+		 * @param slaveThread
+		 *            the completed SlaveThread.
+		 */
+		void slaveThreadCompleted(SlaveThread slaveThread);
+	}
+
 	public static final boolean DEBUG = true; // whether local execution of
 	                                          // slaves is turned on (for
 	                                          // debugging)
+	public static final String SSH_CONTROL_PATH = System.getProperty("shavadoop.ssh.controlPath",
+	        System.getProperty("user.home") + "/.ssh/shavadoop-%r@%h:%p"); // SSH
+	                                                                      // socket
+	public static final String SSH_CONTROL_PERSIST = System.getProperty("shavadoop.ssh.controlPersist", "10m"); // SSH
+	                                                                                                           // idle
+	                                                                                                           // time
 	public static final String SLAVE_JAR = "/users/zull/BasicShavadoopSlave.jar"; // XXX:
 	                                                                              // make
 	                                                                              // configurable
 
+	/**
+	 * Creates a SlaveThread instance to manage the execution of the
+	 * "FREE_SPACE" command on the designated slave host.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @param scratchDir
+	 *            the directory whose free space the slave reports.
+	 * @return the SlaveThread instance.
+	 */
+	static SlaveThread createFreeSpaceSlaveThread(final String host, final String scratchDir) {
+		return new SlaveThread(host, "FREE_SPACE", Arrays.asList(scratchDir));
+	}
+
 	/**
 	 * Creates a SlaveThread instance to manage the execution of the "MAP"
 	 * command on the designated slave host.
@@ -44,10 +77,12 @@ class SlaveThread extends Thread {
 	 *
 	 * @param host
 	 *            the slave host.
+	 * @param scratchDir
+	 *            the directory whose free space the slave reports.
 	 * @return the SlaveThread instance.
 	 */
-	static SlaveThread createPingSlaveThread(final String host) {
-		return new SlaveThread(host, "PING", Collections.<String>emptyList());
+	static SlaveThread createPingSlaveThread(final String host, final String scratchDir) {
+		return new SlaveThread(host, "PING", Arrays.asList(scratchDir));
 	}
 
 	/**
@@ -56,25 +91,91 @@ class SlaveThread extends Thread {
 	 *
 	 * @param host
 	 *            the slave host.
+	 * @param key
+	 *            the key to reduce.
+	 * @param reducedMapFile
+	 *            the RMx file to write.
+	 * @param manifestFile
+	 *            the file listing the UMx files holding the key, one per line.
 	 * @return the SlaveThread instance.
 	 */
 	static SlaveThread createReduceShuffleSlaveThread(final String host, final String key, final String reducedMapFile,
-	        final Set<String> unsortedMapfiles) {
+	        final String manifestFile) {
+		return new SlaveThread(host, "SHUFFLE_REDUCE", Arrays.asList(key, reducedMapFile, manifestFile));
+	}
+
+	/**
+	 * Creates a SlaveThread instance to manage the execution of the
+	 * "SKETCH_MERGE" command on the designated slave host.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @param topN
+	 *            the number of most frequent words to report.
+	 * @param manifestFile
+	 *            the file listing the Kx files to merge, one per line.
+	 * @return the SlaveThread instance.
+	 */
+	static SlaveThread createSketchMergeSlaveThread(final String host, final int topN, final String manifestFile) {
+		return new SlaveThread(host, "SKETCH_MERGE", Arrays.asList(String.valueOf(topN), manifestFile));
+	}
+
+	/**
+	 * Creates a SlaveThread instance to manage the execution of the "SKETCH"
+	 * command on the designated slave host.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @param splitFile
+	 *            the split file to sketch.
+	 * @param sketchSpec
+	 *            the error bounds of the sketch.
+	 * @return the SlaveThread instance.
+	 */
+	static SlaveThread createSketchSlaveThread(final String host, final String splitFile,
+	        final SketchSpec sketchSpec) {
 		final List<String> params = new ArrayList<>();
-		params.add(key);
-		params.add(reducedMapFile);
-		params.addAll(unsortedMapfiles);
-		return new SlaveThread(host, "SHUFFLE_REDUCE", params);
+		params.add(splitFile);
+		params.addAll(sketchSpec.getSketchParams());
+		return new SlaveThread(host, "SKETCH", params);
+	}
+
+	/**
+	 * Creates a SlaveThread instance to manage the execution of the "VERIFY"
+	 * command on the designated slave host.
+	 *
+	 * @param host
+	 *            the slave host.
+	 * @param manifestFile
+	 *            the file listing the output files to verify, one "<file>
+	 *            <size> <crc32>" line each.
+	 * @return the SlaveThread instance.
+	 */
+	static SlaveThread createVerifySlaveThread(final String host, final String manifestFile) {
+		return new SlaveThread(host, "VERIFY", Arrays.asList(manifestFile));
 	}
 
 	protected final String command; // the command to execute remotely ("PING",
-	                                // "MAP", "SHUFFLE_REDUCE")
+	                                // "FREE_SPACE", "MAP", "SHUFFLE_REDUCE",
+	                                // "VERIFY", "SKETCH", "SKETCH_MERGE")
+
+	protected long freeSpace = -1; // the free space reported by the slave, in
+	                               // bytes (-1 if not reported)
 
 	protected final String host; // the (remote) slave host
 
+	protected Listener listener = null; // the listener notified upon
+	                                    // completion
+
 	protected List<String> output = null; // the result of the slave execution
 	                                      // as a list of strings
 
+	protected final List<OutputFile> outputFiles = new ArrayList<>(); // the
+	                                                                  // files
+	                                                                  // reported
+	                                                                  // by the
+	                                                                  // slave
+
 	protected final List<String> params; // the parameters of the command to
 	                                     // execute
 
@@ -95,6 +196,24 @@ class SlaveThread extends Thread {
 		this.params = params;
 	}
 
+	/**
+	 * Returns the command to execute remotely.
+	 *
+	 * @return the command.
+	 */
+	String getCommand() {
+		return command;
+	}
+
+	/**
+	 * Returns the free space reported by the slave.
+	 *
+	 * @return the free space, in bytes, or -1 if not reported.
+	 */
+	long getFreeSpace() {
+		return freeSpace;
+	}
+
 	/**
 	 * Returns the slave host assigned to this SlaveThread instance.
 	 *
@@ -113,6 +232,74 @@ class SlaveThread extends Thread {
 		return output;
 	}
 
+	/**
+	 * Waits for all designated slave threads.
+	 *
+	 * @param slaveThreads
+	 *            the threads to wait for (join with).
+	 */
+	static void waitFor(final List<SlaveThread> slaveThreads) {
+		for (final Thread slaveThread : slaveThreads) {
+			while (true) {
+				try {
+					slaveThread.join();
+					break;
+				} catch (final InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the first output file reported by the slave.
+	 *
+	 * @return the output file, or null if none was reported.
+	 */
+	OutputFile getOutputFile() {
+		return outputFiles.isEmpty() ? null : outputFiles.get(0);
+	}
+
+	/**
+	 * Returns all the output files reported by the slave.
+	 *
+	 * @return the output files.
+	 */
+	List<OutputFile> getOutputFiles() {
+		return outputFiles;
+	}
+
+	/**
+	 * Returns the parameters of the command.
+	 *
+	 * @return the parameters.
+	 */
+	List<String> getParams() {
+		return params;
+	}
+
+	/**
+	 * Removes the "OUTPUT <file> <size> <crc32>" and "FREE <bytes>" lines
+	 * reported by the slave from the provided output, and keeps track of the
+	 * reported files and free space.
+	 *
+	 * @param output
+	 *            the output of the remote execution.
+	 */
+	private void parseReports(final List<String> output) {
+		final Iterator<String> iter = output.iterator();
+		while (iter.hasNext()) {
+			final String line = iter.next();
+			if (line.startsWith("OUTPUT ")) {
+				outputFiles.add(OutputFile.parse(line.substring("OUTPUT ".length())));
+				iter.remove();
+			} else if (line.startsWith("FREE ")) {
+				freeSpace = Long.parseLong(line.substring("FREE ".length()));
+				iter.remove();
+			}
+		}
+	}
+
 	/**
 	 * Reads from the provided input stream until EOF condition reached.
 	 *
@@ -153,7 +340,15 @@ class SlaveThread extends Thread {
 	        throws IOException, InterruptedException {
 		final List<String> cmd = new ArrayList<>();
 		if (!DEBUG) {
+			// Multiplex the commands sent to a slave host over a single SSH
+			// connection, kept open between tasks and jobs.
 			cmd.add("/usr/bin/ssh");
+			cmd.add("-o");
+			cmd.add("ControlMaster=auto");
+			cmd.add("-o");
+			cmd.add("ControlPath=" + SSH_CONTROL_PATH);
+			cmd.add("-o");
+			cmd.add("ControlPersist=" + SSH_CONTROL_PERSIST);
 			cmd.add(host);
 		}
 		cmd.add("java");
@@ -181,6 +376,7 @@ class SlaveThread extends Thread {
 		try {
 			output = remoteExec(host, command, params);
 			if (output != null) {
+				parseReports(output);
 				System.err.println("Completed sucessfully.");
 			} else {
 				System.err.println("Failed.");
@@ -189,9 +385,24 @@ class SlaveThread extends Thread {
 			e.printStackTrace();
 		} catch (final InterruptedException e) {
 			e.printStackTrace();
+		} finally {
+			if (listener != null) {
+				listener.slaveThreadCompleted(this);
+			}
 		}
 	}
 
+	/**
+	 * Sets the listener to notify when the remote execution has completed.
+	 * Must be called before the thread is started.
+	 *
+	 * @param listener
+	 *            the listener.
+	 */
+	void setListener(final Listener listener) {
+		this.listener = listener;
+	}
+
 	// private void print(InputStream is) throws IOException {
 	// try (BufferedReader reader = new BufferedReader(new InputStreamReader(
 	// is))) {
@@ -0,0 +1,187 @@
+package shavadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Implements a Count-Min Sketch: estimates the number of occurrences of a key
+ * with an overestimate of at most epsilon times the total count, with
+ * probability 1 - delta. Sketches of identical dimensions can be merged.
+ *
+ * @author zull
+ *
+ */
+class CountMinSketch {
+	/**
+	 * Reads a sketch written by {@link #write(DataOutput)}.
+	 *
+	 * @param in
+	 *            the input to read from.
+	 * @return the sketch.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	static CountMinSketch read(final DataInput in) throws IOException {
+		final CountMinSketch sketch = new CountMinSketch(in.readInt(), in.readInt());
+		sketch.total = in.readLong();
+		if (in.readBoolean()) {
+			final int nonZero = in.readInt();
+			for (int i = 0; i < nonZero; i++) {
+				sketch.counts[in.readInt()] = in.readLong();
+			}
+		} else {
+			for (int i = 0; i < sketch.counts.length; i++) {
+				sketch.counts[i] = in.readLong();
+			}
+		}
+		return sketch;
+	}
+
+	private final long[] counts; // the counters, row after row
+
+	private final int depth; // the number of rows (hash functions)
+
+	private long total = 0; // the total count of all keys
+
+	private final int width; // the number of counters per row
+
+	/**
+	 * Creates a sketch with the specified error bounds.
+	 *
+	 * @param epsilon
+	 *            the maximum overestimate, relative to the total count.
+	 * @param delta
+	 *            the probability that the overestimate exceeds the bound.
+	 */
+	CountMinSketch(final double epsilon, final double delta) {
+		this((int) Math.ceil(Math.log(1 / delta)), (int) Math.ceil(Math.E / epsilon));
+	}
+
+	/**
+	 * Creates a sketch with the specified dimensions.
+	 *
+	 * @param depth
+	 *            the number of rows (hash functions).
+	 * @param width
+	 *            the number of counters per row.
+	 */
+	CountMinSketch(final int depth, final int width) {
+		if (depth <= 0 || width <= 0) {
+			throw new IllegalArgumentException("Invalid sketch dimensions: " + depth + "x" + width);
+		}
+		this.depth = depth;
+		this.width = width;
+		counts = new long[depth * width];
+	}
+
+	/**
+	 * Adds occurrences of a key.
+	 *
+	 * @param hash
+	 *            the 64-bit hash of the key.
+	 * @param count
+	 *            the number of occurrences.
+	 */
+	void add(final long hash, final long count) {
+		for (int i = 0; i < depth; i++) {
+			counts[index(hash, i)] += count;
+		}
+		total += count;
+	}
+
+	/**
+	 * Estimates the number of occurrences of a key.
+	 *
+	 * @param hash
+	 *            the 64-bit hash of the key.
+	 * @return the estimate, never lower than the actual count.
+	 */
+	long estimate(final long hash) {
+		long estimate = Long.MAX_VALUE;
+		for (int i = 0; i < depth; i++) {
+			estimate = Math.min(estimate, counts[index(hash, i)]);
+		}
+		return estimate;
+	}
+
+	/**
+	 * Returns the total count of all keys.
+	 *
+	 * @return the total count.
+	 */
+	long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns the index of the counter of a key in the specified row, derived
+	 * from the two halves of its hash.
+	 *
+	 * @param hash
+	 *            the 64-bit hash of the key.
+	 * @param row
+	 *            the row.
+	 * @return the index of the counter.
+	 */
+	private int index(final long hash, final int row) {
+		int combined = (int) hash + row * (int) (hash >>> 32);
+		if (combined < 0) {
+			combined = ~combined;
+		}
+		return row * width + combined % width;
+	}
+
+	/**
+	 * Merges the specified sketch into this one.
+	 *
+	 * @param other
+	 *            the sketch to merge, of identical dimensions.
+	 */
+	void merge(final CountMinSketch other) {
+		if (other.depth != depth || other.width != width) {
+			throw new IllegalArgumentException("Cannot merge sketches of different dimensions");
+		}
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		total += other.total;
+	}
+
+	/**
+	 * Writes the sketch. Sketches of small splits are mostly empty, and are
+	 * written sparse.
+	 *
+	 * @param out
+	 *            the output to write to.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void write(final DataOutput out) throws IOException {
+		out.writeInt(depth);
+		out.writeInt(width);
+		out.writeLong(total);
+		int nonZero = 0;
+		for (final long count : counts) {
+			if (count != 0) {
+				nonZero++;
+			}
+		}
+		// A sparse counter takes 12 bytes, a dense one 8.
+		final boolean sparse = nonZero * 12L < counts.length * 8L;
+		out.writeBoolean(sparse);
+		if (sparse) {
+			out.writeInt(nonZero);
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] != 0) {
+					out.writeInt(i);
+					out.writeLong(counts[i]);
+				}
+			}
+		} else {
+			for (final long count : counts) {
+				out.writeLong(count);
+			}
+		}
+	}
+}
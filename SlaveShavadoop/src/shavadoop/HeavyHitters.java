@@ -0,0 +1,147 @@
+package shavadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implements a mergeable Misra-Gries heavy hitters summary: keeps at most
+ * capacity candidate keys, so that every key occurring more than total /
+ * (capacity + 1) times is a candidate. The counts of the candidates are
+ * underestimated by at most that same amount.
+ *
+ * @author zull
+ *
+ */
+class HeavyHitters {
+	/**
+	 * Reads a summary written by {@link #write(DataOutput)}.
+	 *
+	 * @param in
+	 *            the input to read from.
+	 * @return the summary.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	static HeavyHitters read(final DataInput in) throws IOException {
+		final HeavyHitters heavyHitters = new HeavyHitters(in.readInt());
+		final int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			heavyHitters.counters.put(in.readUTF(), in.readLong());
+		}
+		return heavyHitters;
+	}
+
+	private final int capacity; // the maximum number of candidates
+
+	private final Map<String, Long> counters = new HashMap<>(); // the
+	                                                            // candidates
+	                                                            // and their
+	                                                            // counts
+
+	/**
+	 * Creates a summary with the specified capacity.
+	 *
+	 * @param capacity
+	 *            the maximum number of candidates.
+	 */
+	HeavyHitters(final int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Invalid heavy hitters capacity: " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Adds occurrences of a key.
+	 *
+	 * @param key
+	 *            the key.
+	 * @param count
+	 *            the number of occurrences.
+	 */
+	void add(final String key, final long count) {
+		final Long current = counters.get(key);
+		counters.put(key, current == null ? count : current + count);
+		// Let the summary grow to twice its capacity between prunings, so
+		// that the cost of pruning is amortized.
+		if (counters.size() > 2 * capacity) {
+			prune();
+		}
+	}
+
+	/**
+	 * Returns the candidate keys.
+	 *
+	 * @return the candidates.
+	 */
+	List<String> getCandidates() {
+		return new ArrayList<>(counters.keySet());
+	}
+
+	/**
+	 * Merges the specified summary into this one.
+	 *
+	 * @param other
+	 *            the summary to merge, of identical capacity.
+	 */
+	void merge(final HeavyHitters other) {
+		if (other.capacity != capacity) {
+			throw new IllegalArgumentException("Cannot merge heavy hitters summaries of different capacities");
+		}
+		for (final Map.Entry<String, Long> entry : other.counters.entrySet()) {
+			add(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Brings the summary back to its capacity, by subtracting the count of the
+	 * (capacity + 1)-th largest candidate from all candidates and dropping
+	 * those left without occurrences.
+	 */
+	private void prune() {
+		if (counters.size() <= capacity) {
+			return;
+		}
+		final long[] counts = new long[counters.size()];
+		int i = 0;
+		for (final long count : counters.values()) {
+			counts[i++] = count;
+		}
+		Arrays.sort(counts);
+		final long decrement = counts[counts.length - capacity - 1];
+		final Iterator<Map.Entry<String, Long>> iter = counters.entrySet().iterator();
+		while (iter.hasNext()) {
+			final Map.Entry<String, Long> entry = iter.next();
+			if (entry.getValue() <= decrement) {
+				iter.remove();
+			} else {
+				entry.setValue(entry.getValue() - decrement);
+			}
+		}
+	}
+
+	/**
+	 * Writes the summary, pruned to its capacity.
+	 *
+	 * @param out
+	 *            the output to write to.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void write(final DataOutput out) throws IOException {
+		prune();
+		out.writeInt(capacity);
+		out.writeInt(counters.size());
+		for (final Map.Entry<String, Long> entry : counters.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeLong(entry.getValue());
+		}
+	}
+}
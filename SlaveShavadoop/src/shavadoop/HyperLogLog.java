@@ -0,0 +1,144 @@
+package shavadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Implements a HyperLogLog counter: estimates the number of distinct keys with
+ * a standard error of about 1.04 / sqrt(2^precision). Counters of identical
+ * precision can be merged.
+ *
+ * @author zull
+ *
+ */
+class HyperLogLog {
+	/**
+	 * Reads a counter written by {@link #write(DataOutput)}.
+	 *
+	 * @param in
+	 *            the input to read from.
+	 * @return the counter.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	static HyperLogLog read(final DataInput in) throws IOException {
+		final HyperLogLog hll = new HyperLogLog(in.readInt());
+		if (in.readBoolean()) {
+			final int nonZero = in.readInt();
+			for (int i = 0; i < nonZero; i++) {
+				hll.registers[in.readInt()] = in.readByte();
+			}
+		} else {
+			in.readFully(hll.registers);
+		}
+		return hll;
+	}
+
+	private final int precision; // the number of hash bits used to select a
+	                             // register
+
+	private final byte[] registers; // the registers
+
+	/**
+	 * Creates a counter with the specified precision.
+	 *
+	 * @param precision
+	 *            the precision, between 4 and 18.
+	 */
+	HyperLogLog(final int precision) {
+		if (precision < 4 || precision > 18) {
+			throw new IllegalArgumentException("Invalid HyperLogLog precision: " + precision);
+		}
+		this.precision = precision;
+		registers = new byte[1 << precision];
+	}
+
+	/**
+	 * Adds a key.
+	 *
+	 * @param hash
+	 *            the 64-bit hash of the key.
+	 */
+	void add(final long hash) {
+		final int index = (int) (hash >>> (64 - precision));
+		final byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+		if (rank > registers[index]) {
+			registers[index] = rank;
+		}
+	}
+
+	/**
+	 * Estimates the number of distinct keys added.
+	 *
+	 * @return the estimate.
+	 */
+	long estimate() {
+		final int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (final byte register : registers) {
+			sum += 1.0 / (1L << register);
+			if (register == 0) {
+				zeros++;
+			}
+		}
+		final double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+		final double estimate = alpha * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0) {
+			// Small range correction (linear counting).
+			return Math.round(m * Math.log((double) m / zeros));
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Merges the specified counter into this one.
+	 *
+	 * @param other
+	 *            the counter to merge, of identical precision.
+	 */
+	void merge(final HyperLogLog other) {
+		if (other.precision != precision) {
+			throw new IllegalArgumentException("Cannot merge HyperLogLog counters of different precisions");
+		}
+		for (int i = 0; i < registers.length; i++) {
+			if (other.registers[i] > registers[i]) {
+				registers[i] = other.registers[i];
+			}
+		}
+	}
+
+	/**
+	 * Writes the counter. Counters of small splits are mostly empty, and are
+	 * written sparse.
+	 *
+	 * @param out
+	 *            the output to write to.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void write(final DataOutput out) throws IOException {
+		out.writeInt(precision);
+		int nonZero = 0;
+		for (final byte register : registers) {
+			if (register != 0) {
+				nonZero++;
+			}
+		}
+		// A sparse register takes 5 bytes, a dense one 1.
+		final boolean sparse = nonZero * 5L < registers.length;
+		out.writeBoolean(sparse);
+		if (sparse) {
+			out.writeInt(nonZero);
+			for (int i = 0; i < registers.length; i++) {
+				if (registers[i] != 0) {
+					out.writeInt(i);
+					out.writeByte(registers[i]);
+				}
+			}
+		} else {
+			out.write(registers);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package shavadoop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the counting cost and accuracy of the approximate counting mode
+ * against exact counting, on a synthetic corpus whose word frequencies follow
+ * a Zipf distribution.
+ * <p>
+ * The exact path counts each split in a hash map and merges the maps; the
+ * approximate path builds a {@link WordSketch} per split and merges the
+ * sketches, as the "SKETCH" and "SKETCH_MERGE" commands do. Both run
+ * in-process, so that only the counting itself is measured: the timings leave
+ * out the slave processes of the actual job stages, which dominate their
+ * latency. See the master JobBenchmark for end-to-end job latencies.
+ *
+ * @author zull
+ *
+ */
+public class SketchBenchmark {
+
+	/**
+	 * Main entry point.
+	 *
+	 * @param args
+	 *            the optional arguments, in order: the number of words
+	 *            (1000000), the vocabulary size (100000), the number of splits
+	 *            (100), epsilon (0.001), delta (0.01), the HyperLogLog
+	 *            precision (14) and the number of top words compared (100).
+	 */
+	public static void main(final String[] args) {
+		final int words = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		final int vocabulary = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		final int splits = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		final double epsilon = args.length > 3 ? Double.parseDouble(args[3]) : 0.001;
+		final double delta = args.length > 4 ? Double.parseDouble(args[4]) : 0.01;
+		final int precision = args.length > 5 ? Integer.parseInt(args[5]) : 14;
+		final int topN = args.length > 6 ? Integer.parseInt(args[6]) : 100;
+
+		final List<List<String>> corpus = generateCorpus(words, vocabulary, splits, new Random(42));
+		System.out.println("Corpus: " + words + " words, vocabulary of " + vocabulary + ", " + splits + " splits");
+		System.out.println("Sketch: epsilon=" + epsilon + ", delta=" + delta + ", precision=" + precision);
+
+		// Warm up both paths before measuring.
+		exactCount(corpus);
+		approximateCount(corpus, epsilon, delta, precision);
+
+		long start = System.nanoTime();
+		final Map<String, Long> exact = exactCount(corpus);
+		final List<String> exactTop = topWords(exact, topN);
+		final long exactNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		final WordSketch sketch = approximateCount(corpus, epsilon, delta, precision);
+		final List<String> approximateTop = sketch.topWords(topN);
+		final long approximateNanos = System.nanoTime() - start;
+
+		// Compare the top words and their counts.
+		final Set<String> exactTopWords = new HashSet<>();
+		for (final String wordCount : exactTop) {
+			exactTopWords.add(wordCount.substring(0, wordCount.lastIndexOf(':')));
+		}
+		int hits = 0;
+		double relativeError = 0;
+		long maxError = 0;
+		for (final String wordCount : approximateTop) {
+			final int sep = wordCount.lastIndexOf(':');
+			final String word = wordCount.substring(0, sep);
+			final long estimate = Long.parseLong(wordCount.substring(sep + 1));
+			if (exactTopWords.contains(word)) {
+				hits++;
+			}
+			relativeError += Math.abs(estimate - exact.get(word)) / (double) exact.get(word);
+			maxError = Math.max(maxError, Math.abs(estimate - exact.get(word)));
+		}
+		final long distinct = sketch.distinctWords();
+
+		System.out.println("Counting cost only (in-process, without the slave processes of a job):");
+		System.out.println(String.format("Exact:       %8.1f ms", exactNanos / 1e6));
+		System.out.println(String.format("Approximate: %8.1f ms", approximateNanos / 1e6));
+		System.out.println(String.format("Top-%d recall: %.1f%%", topN, 100.0 * hits / exactTop.size()));
+		System.out.println(String.format("Top-%d count error: %.2f%% mean relative, %d max (bound: %d)", topN,
+		        100 * relativeError / approximateTop.size(), maxError, (long) (epsilon * sketch.totalWords())));
+		System.out.println(String.format("Distinct words: %d estimated, %d exact (error %.2f%%)", distinct,
+		        exact.size(), 100.0 * Math.abs(distinct - exact.size()) / exact.size()));
+	}
+
+	/**
+	 * Counts the words of the corpus approximately: one sketch per split, then
+	 * a merge of all the sketches.
+	 *
+	 * @param corpus
+	 *            the splits of the corpus.
+	 * @param epsilon
+	 *            the relative error of the word counts.
+	 * @param delta
+	 *            the failure probability of the word counts.
+	 * @param precision
+	 *            the HyperLogLog precision.
+	 * @return the merged sketch.
+	 */
+	private static WordSketch approximateCount(final List<List<String>> corpus, final double epsilon,
+	        final double delta, final int precision) {
+		final WordSketch merged = new WordSketch(epsilon, delta, precision);
+		for (final List<String> split : corpus) {
+			final WordSketch sketch = new WordSketch(epsilon, delta, precision);
+			for (final String word : split) {
+				sketch.add(word);
+			}
+			merged.merge(sketch);
+		}
+		return merged;
+	}
+
+	/**
+	 * Counts the words of the corpus exactly: one map per split, then a merge
+	 * of all the maps.
+	 *
+	 * @param corpus
+	 *            the splits of the corpus.
+	 * @return the number of occurrences of each word.
+	 */
+	private static Map<String, Long> exactCount(final List<List<String>> corpus) {
+		final Map<String, Long> merged = new HashMap<>();
+		for (final List<String> split : corpus) {
+			final Map<String, Long> counts = new HashMap<>();
+			for (final String word : split) {
+				final Long count = counts.get(word);
+				counts.put(word, count == null ? 1 : count + 1);
+			}
+			for (final Map.Entry<String, Long> entry : counts.entrySet()) {
+				final Long count = merged.get(entry.getKey());
+				merged.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Generates a corpus whose word frequencies follow a Zipf distribution of
+	 * exponent 1.1.
+	 *
+	 * @param words
+	 *            the number of words.
+	 * @param vocabulary
+	 *            the vocabulary size.
+	 * @param splits
+	 *            the number of splits.
+	 * @param random
+	 *            the random generator.
+	 * @return the splits of the corpus.
+	 */
+	private static List<List<String>> generateCorpus(final int words, final int vocabulary, final int splits,
+	        final Random random) {
+		final double[] cumulative = new double[vocabulary];
+		double sum = 0;
+		for (int i = 0; i < vocabulary; i++) {
+			sum += 1 / Math.pow(i + 1, 1.1);
+			cumulative[i] = sum;
+		}
+		final List<List<String>> corpus = new ArrayList<>();
+		for (int s = 0; s < splits; s++) {
+			corpus.add(new ArrayList<String>());
+		}
+		for (int i = 0; i < words; i++) {
+			int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+			if (index < 0) {
+				index = -index - 1;
+			}
+			corpus.get(i % splits).add("w" + Math.min(index, vocabulary - 1));
+		}
+		return corpus;
+	}
+
+	/**
+	 * Returns the most frequent words.
+	 *
+	 * @param counts
+	 *            the number of occurrences of each word.
+	 * @param n
+	 *            the maximum number of words to return.
+	 * @return the "word:count" pairs, sorted by decreasing count.
+	 */
+	private static List<String> topWords(final Map<String, Long> counts, final int n) {
+		final List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+
+			@Override
+			public int compare(final Map.Entry<String, Long> o1, final Map.Entry<String, Long> o2) {
+				return Long.compare(o2.getValue(), o1.getValue());
+			}
+
+		});
+		final List<String> topWords = new ArrayList<>();
+		for (final Map.Entry<String, Long> entry : entries.subList(0, Math.min(n, entries.size()))) {
+			topWords.add(entry.getKey() + ":" + entry.getValue());
+		}
+		return topWords;
+	}
+}
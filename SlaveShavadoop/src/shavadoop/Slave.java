@@ -10,6 +10,7 @@ import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.CRC32;
 
 /**
  * Implements the Shavadoop slave.
@@ -18,19 +19,24 @@ import java.util.List;
  *
  */
 public class Slave {
+	private static final String WORD_SEPARATORS = "[ \t'.,]+"; // the regular
+	                                                           // expression
+	                                                           // separating
+	                                                           // words
 
 	/**
 	 * Main entry point.
 	 *
 	 * @param args
-	 *            the arguments : the operation (PING|MAP|SHUFFLE_REDUCE)
+	 *            the arguments : the operation
+	 *            (PING|FREE_SPACE|MAP|SHUFFLE_REDUCE|VERIFY|SKETCH|SKETCH_MERGE)
 	 *            followed by parameters.
 	 * @throws IOException
 	 *             if any I/O error occurred.
 	 */
 	public static void main(final String[] args) throws IOException {
 		if (args.length < 1) {
-			throw new IllegalArgumentException("Usage: Slave <command=[PING|MAP|SHUFFLE_REDUCE]> <param>");
+			throw new IllegalArgumentException("Usage: Slave <command=[PING|FREE_SPACE|MAP|SHUFFLE_REDUCE|VERIFY|SKETCH|SKETCH_MERGE]> <param>");
 		}
 		new Slave(args[0], Arrays.asList(args).subList(1, args.length));
 		System.exit(0);
@@ -51,10 +57,20 @@ public class Slave {
 		if ("PING".equals(operation)) {
 			ping();
 			System.out.println("OK");
+			printFreeSpace(params.size() > 0 ? Paths.get(params.get(0)) : Paths.get(""));
+		} else if ("FREE_SPACE".equals(operation)) {
+			// Unlike PING, report the free space right away.
+			printFreeSpace(params.size() > 0 ? Paths.get(params.get(0)) : Paths.get(""));
 		} else if ("MAP".equals(operation)) {
 			map(params);
 		} else if ("SHUFFLE_REDUCE".equals(operation)) {
 			shuffleReduce(params);
+		} else if ("VERIFY".equals(operation)) {
+			verify(params);
+		} else if ("SKETCH".equals(operation)) {
+			sketch(params);
+		} else if ("SKETCH_MERGE".equals(operation)) {
+			sketchMerge(params);
 		}
 		System.err.println("Terminated.");
 	}
@@ -77,7 +93,7 @@ public class Slave {
 		final List<String> lines = Files.readAllLines(SxFile, Charset.defaultCharset());
 		final List<String> words = new ArrayList<>();
 		for (final String line : lines) {
-			for (final String word : line.split("[ \t'.,]+")) {
+			for (final String word : line.split(WORD_SEPARATORS)) {
 				if (word.length() > 0) {
 					words.add(word + ": 1");
 					System.out.println(word + ":" + UMxFile);
@@ -86,11 +102,28 @@ public class Slave {
 		}
 		if (words.size() > 0) {
 			Files.write(UMxFile, words, Charset.defaultCharset(), new OpenOption[0]);
+			printOutputFile(UMxFile);
+			printFreeSpace(UMxFile);
 			System.out.flush();
 		}
 		return;
 	}
 
+	/**
+	 * Computes the CRC32 checksum of the specified file.
+	 *
+	 * @param file
+	 *            the file.
+	 * @return the checksum of the file content.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private long checksum(final Path file) throws IOException {
+		final CRC32 crc = new CRC32();
+		crc.update(Files.readAllBytes(file));
+		return crc.getValue();
+	}
+
 	/**
 	 * Handles the ping operation; Sleeps for 10 seconds.
 	 */
@@ -103,7 +136,41 @@ public class Slave {
 	}
 
 	/**
-	 * Implements the shuffle/reduce stage.
+	 * Reports an output file to the master, as an "OUTPUT <file> <size>
+	 * <crc32>" line, so that it can be recorded in the job journal.
+	 *
+	 * @param file
+	 *            the output file.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void printOutputFile(final Path file) throws IOException {
+		System.out.println("OUTPUT " + file + " " + Files.size(file) + " " + checksum(file));
+	}
+
+	/**
+	 * Reports the usable space of the file system holding the specified file
+	 * to the master, as a "FREE <bytes>" line, so that it can avoid scheduling
+	 * tasks on nearly full hosts.
+	 *
+	 * @param file
+	 *            the file (or directory); its closest existing ancestor is used
+	 *            if it does not exist.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void printFreeSpace(final Path file) throws IOException {
+		Path path = file.toAbsolutePath();
+		while (!Files.exists(path) && path.getParent() != null) {
+			path = path.getParent();
+		}
+		System.out.println("FREE " + Files.getFileStore(path).getUsableSpace());
+	}
+
+	/**
+	 * Implements the shuffle/reduce stage. The UMx files holding the key are
+	 * listed one per line in a manifest file, since a common key is found in
+	 * too many of them for a command line.
 	 *
 	 * @param params
 	 *            the parameters.
@@ -111,17 +178,16 @@ public class Slave {
 	 *             if any I/O error occurred.
 	 */
 	private void shuffleReduce(final List<String> params) throws IOException {
-		if (params == null || params.size() < 3) {
-			throw new IllegalArgumentException("Usage: Slave SHUFFLE_REDUCE <key> <RMx> <UMx>...");
+		if (params == null || params.size() != 3) {
+			throw new IllegalArgumentException("Usage: Slave SHUFFLE_REDUCE <key> <RMx> <manifest>");
 		}
 		final String key = params.get(0);
-		final String RMxFile = params.get(1);
-		final String SMxFile = RMxFile.replaceFirst("^R", "S");
+		final Path RMxFile = Paths.get(params.get(1));
+		final Path SMxFile = RMxFile.resolveSibling(RMxFile.getFileName().toString().replaceFirst("^R", "S"));
 
 		int count = 0;
 		final List<String> results = new ArrayList<>();
-		for (int i = 2; i < params.size(); i++) {
-			final String UMxFile = params.get(i);
+		for (final String UMxFile : Files.readAllLines(Paths.get(params.get(2)), Charset.defaultCharset())) {
 			final List<String> lines = Files.readAllLines(Paths.get(UMxFile), Charset.defaultCharset());
 			for (final String line : lines) {
 				final String[] fields = line.split(":");
@@ -134,16 +200,132 @@ public class Slave {
 			}
 		}
 		if (results.size() > 0 && SMxFile != null) {
-			Files.write(Paths.get(SMxFile), results, Charset.defaultCharset(), StandardOpenOption.CREATE,
+			Files.write(SMxFile, results, Charset.defaultCharset(), StandardOpenOption.CREATE,
 					StandardOpenOption.TRUNCATE_EXISTING);
 		}
 		final String output = key + ":" + count;
 		if (output.length() > 0) {
-			Files.write(Paths.get(RMxFile), output.getBytes(Charset.defaultCharset()), StandardOpenOption.CREATE,
+			Files.write(RMxFile, output.getBytes(Charset.defaultCharset()), StandardOpenOption.CREATE,
 					StandardOpenOption.TRUNCATE_EXISTING);
+			printOutputFile(RMxFile);
+			if (results.size() > 0) {
+				printOutputFile(SMxFile);
+			}
+			printFreeSpace(RMxFile);
 		}
 		System.out.println(output);
 		return;
 	}
 
-}
+	/**
+	 * Implements the map stage of the approximate counting mode: builds the
+	 * word sketch of a split file, written to the Kx file next to it.
+	 *
+	 * @param params
+	 *            the parameters.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void sketch(final List<String> params) throws IOException {
+		if (params == null || params.size() != 4) {
+			throw new IllegalArgumentException("Usage: Slave SKETCH <Sx> <epsilon> <delta> <precision>");
+		}
+		final Path SxFile = Paths.get(params.get(0));
+		final Path KxFile = SxFile
+				.resolveSibling("K" + SxFile.getName(SxFile.getNameCount() - 1).toString().substring("S".length()));
+		final WordSketch sketch = new WordSketch(Double.parseDouble(params.get(1)), Double.parseDouble(params.get(2)),
+				Integer.parseInt(params.get(3)));
+		for (final String line : Files.readAllLines(SxFile, Charset.defaultCharset())) {
+			for (final String word : line.split(WORD_SEPARATORS)) {
+				if (word.length() > 0) {
+					sketch.add(word);
+				}
+			}
+		}
+		sketch.write(KxFile);
+		printOutputFile(KxFile);
+		printFreeSpace(KxFile);
+		return;
+	}
+
+	/**
+	 * Implements the merge stage of the approximate counting mode: merges the
+	 * word sketches of all the splits, listed one per line in a manifest file
+	 * since there is one per split, then prints the most frequent words as
+	 * "word:count" lines, and the estimated number of distinct words as a
+	 * "DISTINCT <count>" line.
+	 *
+	 * @param params
+	 *            the parameters.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	private void sketchMerge(final List<String> params) throws IOException {
+		if (params == null || params.size() != 2) {
+			throw new IllegalArgumentException("Usage: Slave SKETCH_MERGE <top-n> <manifest>");
+		}
+		WordSketch merged = null;
+		for (final String KxFile : Files.readAllLines(Paths.get(params.get(1)), Charset.defaultCharset())) {
+			final WordSketch sketch = WordSketch.read(Paths.get(KxFile));
+			if (merged == null) {
+				merged = sketch;
+			} else {
+				merged.merge(sketch);
+			}
+		}
+		if (merged != null) {
+			for (final String wordCount : merged.topWords(Integer.parseInt(params.get(0)))) {
+				System.out.println(wordCount);
+			}
+		}
+		System.out.println("DISTINCT " + (merged != null ? merged.distinctWords() : 0));
+		return;
+	}
+
+	/**
+	 * Implements the verification of previously produced output files, used by
+	 * a restarted master to check that journaled outputs are still available.
+	 * The files are listed in a manifest file, one "<file> <size> <crc32>" line
+	 * each, since there may be too many of them for a command line. Prints "OK
+	 * <file>" for each file whose size and checksum still match, and "INVALID
+	 * <file>" for the others, so that a single unreadable file does not fail
+	 * the verification of all the others.
+	 *
+	 * @param params
+	 *            the parameters.
+	 * @throws IOException
+	 *             if the manifest file could not be read.
+	 */
+	private void verify(final List<String> params) throws IOException {
+		if (params == null || params.size() != 1) {
+			throw new IllegalArgumentException("Usage: Slave VERIFY <manifest>");
+		}
+		for (final String line : Files.readAllLines(Paths.get(params.get(0)), Charset.defaultCharset())) {
+			final int crcSep = line.lastIndexOf(' ');
+			final int sizeSep = line.lastIndexOf(' ', crcSep - 1);
+			final Path file = Paths.get(line.substring(0, sizeSep));
+			String problem;
+			try {
+				if (!Files.isRegularFile(file)) {
+					problem = "missing";
+				} else if (Files.size(file) != Long.parseLong(line.substring(sizeSep + 1, crcSep))) {
+					problem = "size mismatch";
+				} else if (checksum(file) != Long.parseLong(line.substring(crcSep + 1))) {
+					problem = "checksum mismatch";
+				} else {
+					problem = null;
+				}
+			} catch (final IOException e) {
+				problem = e.toString();
+			}
+			if (problem == null) {
+				System.out.println("OK " + file);
+			} else {
+				System.err.println("Invalid output " + file + ": " + problem);
+				System.out.println("INVALID " + file);
+			}
+		}
+		return;
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,214 @@
+package shavadoop;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Summarizes the words of a split for the approximate counting mode: a
+ * {@link CountMinSketch} estimating word frequencies, a {@link HeavyHitters}
+ * summary tracking the most frequent words, and a {@link HyperLogLog} counter
+ * estimating the number of distinct words. Word sketches built with the same
+ * error bounds can be merged, in place of the shuffle/reduce stage.
+ *
+ * @author zull
+ *
+ */
+class WordSketch {
+	private static final int MAGIC = 0x53484b31; // the file format identifier
+	                                             // ("SHK1")
+
+	/**
+	 * Computes the 64-bit hash of a word (FNV-1a over its UTF-8 bytes, followed
+	 * by the MurmurHash3 finalizer to spread the bits).
+	 *
+	 * @param word
+	 *            the word.
+	 * @return the hash.
+	 */
+	static long hash(final String word) {
+		long h = 0xcbf29ce484222325L;
+		for (final byte b : word.getBytes(Charset.forName("UTF-8"))) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Reads a word sketch from the specified file.
+	 *
+	 * @param file
+	 *            the file.
+	 * @return the word sketch.
+	 * @throws IOException
+	 *             if any I/O error occurred, or if the file is not a word
+	 *             sketch.
+	 */
+	static WordSketch read(final Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a word sketch: " + file);
+			}
+			return new WordSketch(CountMinSketch.read(in), HeavyHitters.read(in), HyperLogLog.read(in));
+		}
+	}
+
+	private final CountMinSketch countMinSketch; // the frequency estimates
+
+	private final HyperLogLog distinctWords; // the distinct word estimate
+
+	private final HeavyHitters heavyHitters; // the most frequent words
+
+	/**
+	 * Creates an empty word sketch with the specified error bounds.
+	 *
+	 * @param epsilon
+	 *            the maximum error of the frequency estimates, relative to the
+	 *            total number of words.
+	 * @param delta
+	 *            the probability that a frequency estimate exceeds the bound.
+	 * @param precision
+	 *            the precision of the distinct word estimate (standard error
+	 *            of about 1.04 / sqrt(2^precision)).
+	 */
+	WordSketch(final double epsilon, final double delta, final int precision) {
+		this(new CountMinSketch(epsilon, delta), new HeavyHitters((int) Math.ceil(1 / epsilon)),
+		        new HyperLogLog(precision));
+	}
+
+	/**
+	 * Creates a word sketch from its parts.
+	 *
+	 * @param countMinSketch
+	 *            the frequency estimates.
+	 * @param heavyHitters
+	 *            the most frequent words.
+	 * @param distinctWords
+	 *            the distinct word estimate.
+	 */
+	private WordSketch(final CountMinSketch countMinSketch, final HeavyHitters heavyHitters,
+	        final HyperLogLog distinctWords) {
+		this.countMinSketch = countMinSketch;
+		this.heavyHitters = heavyHitters;
+		this.distinctWords = distinctWords;
+	}
+
+	/**
+	 * Adds an occurrence of a word.
+	 *
+	 * @param word
+	 *            the word.
+	 */
+	void add(final String word) {
+		final long hash = hash(word);
+		countMinSketch.add(hash, 1);
+		heavyHitters.add(word, 1);
+		distinctWords.add(hash);
+	}
+
+	/**
+	 * Estimates the number of distinct words.
+	 *
+	 * @return the estimate.
+	 */
+	long distinctWords() {
+		return distinctWords.estimate();
+	}
+
+	/**
+	 * Estimates the number of occurrences of a word.
+	 *
+	 * @param word
+	 *            the word.
+	 * @return the estimate, never lower than the actual count.
+	 */
+	long estimate(final String word) {
+		return countMinSketch.estimate(hash(word));
+	}
+
+	/**
+	 * Merges the specified word sketch into this one.
+	 *
+	 * @param other
+	 *            the word sketch to merge, built with the same error bounds.
+	 */
+	void merge(final WordSketch other) {
+		countMinSketch.merge(other.countMinSketch);
+		heavyHitters.merge(other.heavyHitters);
+		distinctWords.merge(other.distinctWords);
+	}
+
+	/**
+	 * Returns the most frequent words, with their estimated number of
+	 * occurrences.
+	 *
+	 * @param n
+	 *            the maximum number of words to return.
+	 * @return the "word:count" pairs, sorted by decreasing count.
+	 */
+	List<String> topWords(final int n) {
+		final List<String> candidates = heavyHitters.getCandidates();
+		final List<Long> estimates = new ArrayList<>();
+		for (final String word : candidates) {
+			estimates.add(estimate(word));
+		}
+		final List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < candidates.size(); i++) {
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(final Integer o1, final Integer o2) {
+				return Long.compare(estimates.get(o2), estimates.get(o1));
+			}
+
+		});
+		final List<String> topWords = new ArrayList<>();
+		for (final int i : order.subList(0, Math.min(n, order.size()))) {
+			topWords.add(candidates.get(i) + ":" + estimates.get(i));
+		}
+		return topWords;
+	}
+
+	/**
+	 * Returns the total number of words.
+	 *
+	 * @return the total number of words.
+	 */
+	long totalWords() {
+		return countMinSketch.getTotal();
+	}
+
+	/**
+	 * Writes the word sketch to the specified file.
+	 *
+	 * @param file
+	 *            the file.
+	 * @throws IOException
+	 *             if any I/O error occurred.
+	 */
+	void write(final Path file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			countMinSketch.write(out);
+			heavyHitters.write(out);
+			distinctWords.write(out);
+		}
+	}
+}